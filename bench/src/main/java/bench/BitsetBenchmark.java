@@ -0,0 +1,88 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * The merge kernel against the TimeBitset kernel on time vectors that
+ * are discretized to a grid longer than half a window, where the two
+ * must agree. BitsetCheck checks that they do.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BitsetBenchmark {
+
+  private static final int PAIRS = 64;
+
+  // the length of the shorter vector before discretization
+  @Param({"4", "32", "256"})
+  public int shortLength;
+
+  // the length of the longer vector divided by the shorter one
+  @Param({"1", "10"})
+  public int lengthRatio;
+
+  @Param({"0.0", "0.95"})
+  public double overlap;
+
+  @Param({"3600"})
+  public double window;
+
+  @Param({"3600"})
+  public long grid;
+
+  @Param({"0.7"})
+  public double bar;
+
+  private long[][] vectors;
+  private Object bitsets;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42);
+    vectors = new long[2 * PAIRS][];
+    List<Object> profiles = new ArrayList<Object>(2 * PAIRS);
+    for (int p = 0; p < PAIRS; p++) {
+      long[] longVector = TimeVectors.random(random, shortLength * lengthRatio);
+      long[] shortVector = TimeVectors.correlated(random, longVector, shortLength,
+          overlap, (long) (window / 4));
+      vectors[2 * p] = TimeVectors.discretize(shortVector, grid);
+      vectors[2 * p + 1] = TimeVectors.discretize(longVector, grid);
+    }
+    for (int u = 0; u < vectors.length; u++) {
+      profiles.add(Kernels.newProfile("u" + u, vectors[u]));
+    }
+    bitsets = Kernels.newTimeBitset(profiles, grid);
+  }
+
+  @Benchmark
+  public double merge() {
+    int p = next++ & (PAIRS - 1);
+    return Kernels.similarity(vectors[2 * p], vectors[2 * p + 1], window, bar);
+  }
+
+  @Benchmark
+  public double bitset() {
+    int p = next++ & (PAIRS - 1);
+    return Kernels.similarity(bitsets, 2 * p, 2 * p + 1, bar);
+  }
+}
@@ -0,0 +1,206 @@
+package bench;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.Vector;
+
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+
+/*
+ * A randomized check that PairSim.Reduce finds the same similar pairs,
+ * with the same similarities, with ipps.bitsetGrid set as without it,
+ * and that both are the pairs whose plain merge,
+ * VectorUtils.vectorSimilarity(v1, v2, window), reaches the threshold.
+ * A reducer is configured with every setting below, and random groups,
+ * some of them cross sub-groups and some of them large enough for
+ * several tiles, are compared through its compareGroup with the grid
+ * that the reducer configured and with none. A grid that is not longer
+ * than window/2 must fall back to the merge kernel.
+ *
+ * The check runs in the verify phase of the bench module, or as
+ *   java -cp target/benchmarks.jar bench.BitsetCheck [groups] [seed]
+ */
+public final class BitsetCheck {
+
+  // the settings of the reducers; the last two grids are not exact
+  private static final String[][] CASES = {
+      {"ipps.windowSize=3600", "ipps.bitsetGrid=3600"},
+      {"ipps.windowSize=3600", "ipps.bitsetGrid=1801"},
+      {"ipps.windowSize=3600", "ipps.bitsetGrid=7200", "ipps.tvSimBarL=0.3",
+          "ipps.tvSimBarS=0.0"},
+      {"ipps.windowSize=600", "ipps.bitsetGrid=301", "ipps.reduceThreads=3",
+          "ipps.threadMinUsers=1"},
+      {"ipps.windowSize=1", "ipps.bitsetGrid=1", "ipps.collapse=false"},
+      {"ipps.windowSize=3600", "ipps.bitsetGrid=1800"},
+      {"ipps.windowSize=3600", "ipps.bitsetGrid=900"}};
+
+  private BitsetCheck() {
+  }
+
+  public static void main(String[] args) {
+    int groups = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+    long seed = args.length > 1 ? Long.parseLong(args[1]) : 42L;
+    Random random = new Random(seed);
+    for (String[] settings : CASES) {
+      JobConf conf = new JobConf(false);
+      for (String setting : settings) {
+        int eq = setting.indexOf('=');
+        conf.set(setting.substring(0, eq), setting.substring(eq + 1));
+      }
+      int window = conf.getInt("ipps.windowSize", 3600);
+      long grid = conf.getLong("ipps.bitsetGrid", 0);
+      double barL = conf.getFloat("ipps.tvSimBarL", 0.7f);
+      double barS = conf.getFloat("ipps.tvSimBarS", 0.6f);
+
+      Object reduce = Kernels.newSimReduce(conf);
+      long configured = Kernels.bitsetGrid();
+      boolean exact = grid > window / 2.0;
+      if (configured != (exact ? grid : 0)) {
+        throw new IllegalStateException(String.join(",", settings)
+            + " configures grid " + configured);
+      }
+
+      CountingReporter reporter = new CountingReporter();
+      long pairs = 0;
+      for (int g = 0; g < groups; g++) {
+        pairs += checkGroup(random, settings, window, grid, configured, barL, barS,
+            reduce, reporter);
+      }
+      Kernels.close(reduce);
+      long byBitset = reporter.counters.findCounter("IPPS Stats", "Pairs by bitset")
+          .getCounter();
+      if (exact != (byBitset > 0)) {
+        throw new IllegalStateException(String.join(",", settings) + " compares "
+            + byBitset + " pairs by bitset");
+      }
+      System.out.println(String.join(",", settings) + ": " + pairs
+          + " similar pairs, " + byBitset + " pairs by bitset, OK");
+    }
+  }
+
+  // Compare a random group with and without the configured grid, and
+  // with the plain merge.
+  // Returns the number of similar pairs.
+  private static int checkGroup(Random random, String[] settings, int window, long grid,
+      long configured, double barL, double barS, Object reduce, Reporter reporter) {
+    boolean large = random.nextInt(10) == 0;
+    int numUsers = 2 + random.nextInt(large ? 400 : 60);
+    long[] base = TimeVectors.random(random, 1 + random.nextInt(300));
+    Vector<Object> users = new Vector<Object>();
+    long[][] vectors = new long[numUsers][];
+    for (int u = 0; u < numUsers; u++) {
+      int len = 1 + random.nextInt(random.nextBoolean() ? 8 : (large ? 1000 : 300));
+      long[] v = TimeVectors.correlated(random, base, len, random.nextDouble(),
+          Math.max(1, window));
+      // most vectors are on the grid; the others are not covered
+      vectors[u] = random.nextInt(8) == 0 ? v : TimeVectors.discretize(v, grid);
+      users.addElement(Kernels.newProfile(Integer.toString(u), vectors[u]));
+    }
+    boolean isLazy = random.nextBoolean();
+    double bar = isLazy ? barS : barL;
+    // a cross sub-group compares the users before numX with the others
+    boolean isCross = random.nextInt(4) == 0;
+    int numX = isCross ? 1 + random.nextInt(numUsers - 1) : numUsers;
+
+    Map<String, Double> expected = new HashMap<String, Double>();
+    for (int i = 0; i < numX; i++) {
+      for (int j = isCross ? numX : i + 1; j < numUsers; j++) {
+        double similarity = Kernels.similarity(vectors[i], vectors[j], window);
+        if (similarity >= bar) {
+          expected.put(i + "," + j, similarity);
+        }
+      }
+    }
+    Map<String, Double> byBitset = compare(reduce, users, numX, isCross, isLazy,
+        window, bar, configured, reporter);
+    Map<String, Double> byMerge = compare(reduce, users, numX, isCross, isLazy,
+        window, bar, 0, reporter);
+    if (!byBitset.equals(expected) || !byMerge.equals(expected)) {
+      Set<String> keys = new TreeSet<String>(expected.keySet());
+      keys.addAll(byBitset.keySet());
+      keys.addAll(byMerge.keySet());
+      for (String key : keys) {
+        if (!Objects.equals(byBitset.get(key), expected.get(key))
+            || !Objects.equals(byMerge.get(key), expected.get(key))) {
+          throw new IllegalStateException(String.join(",", settings) + ": pair " + key
+              + " of a group of " + numUsers + (isCross ? " cross " : " ")
+              + (isLazy ? "lazy" : "active") + " users has similarity "
+              + expected.get(key) + ", but " + byBitset.get(key)
+              + " with the bitset grid and " + byMerge.get(key) + " without");
+        }
+      }
+    }
+    return expected.size();
+  }
+
+  // The similar pairs "i,j" with i < j that compareGroup emits for users
+  @SuppressWarnings("rawtypes")
+  private static Map<String, Double> compare(Object reduce, Vector<Object> users,
+      int numX, boolean isCross, boolean isLazy, int window, double bar, long grid,
+      Reporter reporter) {
+    final Map<String, Double> pairs = new HashMap<String, Double>();
+    OutputCollector output = new OutputCollector() {
+      public void collect(Object key, Object value) {
+        // "uid1,uid2" and "sim,ip,type"
+        String[] ids = key.toString().split(",");
+        int a = Integer.parseInt(ids[0]);
+        int b = Integer.parseInt(ids[1]);
+        String sim = value.toString();
+        Double old = pairs.put(Math.min(a, b) + "," + Math.max(a, b),
+            Double.parseDouble(sim.substring(0, sim.indexOf(','))));
+        if (old != null) {
+          throw new IllegalStateException("pair " + key + " emitted twice");
+        }
+      }
+    };
+    // compareGroup appends block y to block x
+    Vector<Object> blockX = new Vector<Object>(users.subList(0, numX));
+    Vector<Object> blockY = new Vector<Object>(users.subList(numX, users.size()));
+    Kernels.compareGroup(reduce, blockX, blockY, isCross, "1.2.3.4", isLazy, window, bar,
+        grid, 0, output, reporter);
+    return pairs;
+  }
+
+  // Keeps the counters of the pair loop
+  static final class CountingReporter implements Reporter {
+    final Counters counters = new Counters();
+
+    public void setStatus(String status) {
+    }
+
+    public Counters.Counter getCounter(Enum<?> name) {
+      return counters.findCounter(name);
+    }
+
+    public Counters.Counter getCounter(String group, String name) {
+      return counters.findCounter(group, name);
+    }
+
+    public void incrCounter(Enum<?> key, long amount) {
+      counters.incrCounter(key, amount);
+    }
+
+    public void incrCounter(String group, String counter, long amount) {
+      counters.incrCounter(group, counter, amount);
+    }
+
+    public InputSplit getInputSplit() {
+      throw new UnsupportedOperationException();
+    }
+
+    public float getProgress() {
+      return 0;
+    }
+
+    public void progress() {
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Parsing and formatting of the text records: time vectors
+ * ("t1,t2,...") and PairSim output lines
+ * ("<uid1>,<uid2>,<sim>,<ip>,<isLazy>").
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+  @Param({"3", "50", "2000"})
+  public int vectorLength;
+
+  private String vectorString;
+  private long[] vector;
+  private String userPairString;
+  private String simMetricString;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42);
+    vector = TimeVectors.random(random, vectorLength);
+    vectorString = Kernels.vector2String(vector);
+    userPairString = Kernels.newUserPair("1000234567", "1000987654",
+        0.7142857142857143, "203.0.113.17", false).toString();
+    simMetricString = userPairString.substring(userPairString.indexOf(',',
+        userPairString.indexOf(',') + 1) + 1);
+  }
+
+  @Benchmark
+  public long[] parseVector() {
+    return Kernels.string2Vector(vectorString);
+  }
+
+  @Benchmark
+  public String formatVector() {
+    return Kernels.vector2String(vector);
+  }
+
+  @Benchmark
+  public Object parseUserPair() {
+    return Kernels.parseUserPair(userPairString);
+  }
+
+  @Benchmark
+  public String formatUserPair() {
+    return Kernels.newUserPair("1000234567", "1000987654",
+        0.7142857142857143, "203.0.113.17", false).toString();
+  }
+
+  @Benchmark
+  public Object parseSimMetric() {
+    return Kernels.parseSimMetric(simMetricString);
+  }
+}
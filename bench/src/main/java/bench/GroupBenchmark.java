@@ -0,0 +1,102 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * The pair loop of PairSim.Reduce over one synthetic ip group: a few
+ * synchronized campaigns hidden among independent users. One invocation
+ * processes the whole group and returns the number of similar pairs.
+ * Groups of 50k users take minutes per invocation in the exhaustive mode.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GroupBenchmark {
+
+  @Param({"100", "1000", "10000", "50000"})
+  public int users;
+
+  // the fraction of users that belong to a campaign
+  @Param({"0.1"})
+  public double campaignShare;
+
+  @Param({"3600"})
+  public double window;
+
+  @Param({"0.7"})
+  public double bar;
+
+  private List<Object> profiles;
+  private long[][] vectors;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42);
+    long[][] campaigns = new long[10][];
+    for (int c = 0; c < campaigns.length; c++) {
+      campaigns[c] = TimeVectors.random(random, 5 + random.nextInt(40));
+    }
+    profiles = new ArrayList<Object>(users);
+    vectors = new long[users][];
+    for (int u = 0; u < users; u++) {
+      int len = 5 + random.nextInt(40);
+      if (random.nextDouble() < campaignShare) {
+        vectors[u] = TimeVectors.correlated(random,
+            campaigns[random.nextInt(campaigns.length)], len, 0.9, 600);
+      } else {
+        vectors[u] = TimeVectors.random(random, len);
+      }
+      profiles.add(Kernels.newProfile("u" + u, vectors[u]));
+    }
+  }
+
+  // every pair with the plain kernel, as in the original reducer
+  @Benchmark
+  public long exhaustive() {
+    long similar = 0;
+    for (int i = 0; i < users; i++) {
+      for (int j = i + 1; j < users; j++) {
+        if (Kernels.similarity(vectors[i], vectors[j], window) >= bar) {
+          similar++;
+        }
+      }
+    }
+    return similar;
+  }
+
+  // candidate pairs from CandidateIndex with the thresholded kernel, as
+  // in the default mode of PairSim.Reduce
+  @Benchmark
+  public long indexed() {
+    Object index = Kernels.newCandidateIndex(profiles, window);
+    int[] candidates = new int[users];
+    long similar = 0;
+    for (int i = 0; i < users; i++) {
+      int n = Kernels.candidates(index, i, bar, candidates);
+      for (int k = 0; k < n; k++) {
+        if (Kernels.similarity(vectors[i], vectors[candidates[k]], window, bar) >= bar) {
+          similar++;
+        }
+      }
+    }
+    return similar;
+  }
+}
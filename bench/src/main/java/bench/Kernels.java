@@ -0,0 +1,299 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Vector;
+
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+
+/*
+ * The pipeline classes live in the default package, which cannot be
+ * imported from a named package and which JMH does not accept for
+ * benchmark classes. Kernels binds the methods under test once through
+ * constant method handles, which the JIT inlines like direct calls.
+ */
+final class Kernels {
+
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+  private static final Class<?> VECTOR_UTILS = load("VectorUtils");
+  private static final Class<?> USER_PAIR = load("UserPair");
+  private static final Class<?> SIM_METRIC = load("SimMetric");
+  private static final Class<?> CANDIDATE_INDEX = load("CandidateIndex");
+
+  private static final MethodHandle SIMILARITY = findStatic(VECTOR_UTILS,
+      "vectorSimilarity", MethodType.methodType(double.class,
+          long[].class, long[].class, double.class));
+  private static final MethodHandle SIMILARITY_BAR = findStatic(VECTOR_UTILS,
+      "vectorSimilarity", MethodType.methodType(double.class,
+          long[].class, long[].class, double.class, double.class));
+  private static final MethodHandle STRING_TO_VECTOR = findStatic(VECTOR_UTILS,
+      "string2Vector", MethodType.methodType(long[].class, String.class));
+  private static final MethodHandle VECTOR_TO_STRING = findStatic(VECTOR_UTILS,
+      "vector2String", MethodType.methodType(String.class, long[].class));
+  private static final MethodHandle NEW_USER_PAIR = findConstructor(USER_PAIR,
+      MethodType.methodType(void.class, String.class))
+      .asType(MethodType.methodType(Object.class, String.class));
+  private static final MethodHandle NEW_USER_PAIR_FIELDS = findConstructor(USER_PAIR,
+      MethodType.methodType(void.class, String.class, String.class,
+          double.class, String.class, boolean.class))
+      .asType(MethodType.methodType(Object.class, String.class, String.class,
+          double.class, String.class, boolean.class));
+  private static final MethodHandle NEW_SIM_METRIC = findConstructor(SIM_METRIC,
+      MethodType.methodType(void.class, String.class))
+      .asType(MethodType.methodType(Object.class, String.class));
+  private static final MethodHandle NEW_CANDIDATE_INDEX = findConstructor(CANDIDATE_INDEX,
+      MethodType.methodType(void.class, List.class, double.class))
+      .asType(MethodType.methodType(Object.class, List.class, double.class));
+  private static final MethodHandle CANDIDATES = findVirtual(CANDIDATE_INDEX,
+      "candidates", MethodType.methodType(int.class, int.class, double.class, int[].class))
+      .asType(MethodType.methodType(int.class, Object.class, int.class,
+          double.class, int[].class));
+  private static final MethodHandle NEW_PROFILE = findConstructor(load("UserActionProfile"),
+      MethodType.methodType(void.class, String.class, long[].class))
+      .asType(MethodType.methodType(Object.class, String.class, long[].class));
+  private static final Class<?> TIME_BITSET = load("TimeBitset");
+  private static final MethodHandle NEW_TIME_BITSET = findConstructor(TIME_BITSET,
+      MethodType.methodType(void.class, List.class, long.class))
+      .asType(MethodType.methodType(Object.class, List.class, long.class));
+  private static final MethodHandle COVERS = findVirtual(TIME_BITSET,
+      "covers", MethodType.methodType(boolean.class, int.class))
+      .asType(MethodType.methodType(boolean.class, Object.class, int.class));
+  private static final MethodHandle BITSET_SIMILARITY = findVirtual(TIME_BITSET,
+      "similarity", MethodType.methodType(double.class, int.class, int.class, double.class))
+      .asType(MethodType.methodType(double.class, Object.class, int.class, int.class,
+          double.class));
+  private static final Class<?> SIM_REDUCE = load("PairSim$Reduce");
+  private static final MethodHandle NEW_SIM_REDUCE = findConstructor(SIM_REDUCE,
+      MethodType.methodType(void.class))
+      .asType(MethodType.methodType(Object.class));
+  private static final MethodHandle CONFIGURE = findVirtual(SIM_REDUCE,
+      "configure", MethodType.methodType(void.class, JobConf.class))
+      .asType(MethodType.methodType(void.class, Object.class, JobConf.class));
+  private static final MethodHandle CLOSE = findVirtual(SIM_REDUCE,
+      "close", MethodType.methodType(void.class))
+      .asType(MethodType.methodType(void.class, Object.class));
+  private static final MethodHandle BITSET_GRID = findStaticGetter(load("PairSim"),
+      "bitsetGrid", long.class);
+  // package-private, like the rest of the pair loop
+  private static final MethodHandle COMPARE_GROUP = findDeclared(SIM_REDUCE,
+      "compareGroup", Vector.class, Vector.class, boolean.class, String.class,
+      boolean.class, int.class, double.class, long.class, int.class,
+      OutputCollector.class, Reporter.class)
+      .asType(MethodType.methodType(void.class, Object.class, Vector.class,
+          Vector.class, boolean.class, String.class, boolean.class, int.class,
+          double.class, long.class, int.class, OutputCollector.class, Reporter.class));
+
+  private Kernels() {
+  }
+
+  static double similarity(long[] v1, long[] v2, double window) {
+    try {
+      return (double) SIMILARITY.invokeExact(v1, v2, window);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static double similarity(long[] v1, long[] v2, double window, double bar) {
+    try {
+      return (double) SIMILARITY_BAR.invokeExact(v1, v2, window, bar);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static long[] string2Vector(String s) {
+    try {
+      return (long[]) STRING_TO_VECTOR.invokeExact(s);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static String vector2String(long[] v) {
+    try {
+      return (String) VECTOR_TO_STRING.invokeExact(v);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static Object parseUserPair(String s) {
+    try {
+      return (Object) NEW_USER_PAIR.invokeExact(s);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static Object newUserPair(String u1, String u2, double sim, String ip, boolean lazy) {
+    try {
+      return (Object) NEW_USER_PAIR_FIELDS.invokeExact(u1, u2, sim, ip, lazy);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static Object parseSimMetric(String s) {
+    try {
+      return (Object) NEW_SIM_METRIC.invokeExact(s);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static Object newProfile(String id, long[] v) {
+    try {
+      return (Object) NEW_PROFILE.invokeExact(id, v);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static Object newCandidateIndex(List<?> users, double window) {
+    try {
+      return (Object) NEW_CANDIDATE_INDEX.invokeExact(users, window);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static int candidates(Object index, int i, double bar, int[] out) {
+    try {
+      return (int) CANDIDATES.invokeExact(index, i, bar, out);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static Object newTimeBitset(List<?> users, long grid) {
+    try {
+      return (Object) NEW_TIME_BITSET.invokeExact(users, grid);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static boolean covers(Object bitsets, int u) {
+    try {
+      return (boolean) COVERS.invokeExact(bitsets, u);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static double similarity(Object bitsets, int i, int j, double bar) {
+    try {
+      return (double) BITSET_SIMILARITY.invokeExact(bitsets, i, j, bar);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  // A PairSim reducer configured with conf
+  static Object newSimReduce(JobConf conf) {
+    try {
+      Object reduce = (Object) NEW_SIM_REDUCE.invokeExact();
+      CONFIGURE.invokeExact(reduce, conf);
+      return reduce;
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static void close(Object reduce) {
+    try {
+      CLOSE.invokeExact(reduce);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  // The bitset grid of the last configured PairSim reducer, 0 if it
+  // falls back to the merge kernel
+  static long bitsetGrid() {
+    try {
+      return (long) BITSET_GRID.invokeExact();
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  @SuppressWarnings("rawtypes")
+  static void compareGroup(Object reduce, Vector<?> users, Vector<?> blockY,
+      boolean isCross, String ip, boolean isLazy, int window, double bar, long grid,
+      int lshMinUsers, OutputCollector output, Reporter reporter) {
+    try {
+      COMPARE_GROUP.invokeExact(reduce, (Vector) users, (Vector) blockY, isCross, ip,
+          isLazy, window, bar, grid, lshMinUsers, output, reporter);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  private static Class<?> load(String name) {
+    try {
+      return Class.forName(name);
+    } catch (ClassNotFoundException e) {
+      throw new IllegalStateException("pipeline class not on the classpath: " + name, e);
+    }
+  }
+
+  private static MethodHandle findStatic(Class<?> c, String name, MethodType type) {
+    try {
+      return LOOKUP.findStatic(c, name, type);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static MethodHandle findVirtual(Class<?> c, String name, MethodType type) {
+    try {
+      return LOOKUP.findVirtual(c, name, type);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static MethodHandle findDeclared(Class<?> c, String name, Class<?>... types) {
+    try {
+      Method method = c.getDeclaredMethod(name, types);
+      method.setAccessible(true);
+      return LOOKUP.unreflect(method);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static MethodHandle findStaticGetter(Class<?> c, String name, Class<?> type) {
+    try {
+      return LOOKUP.findStaticGetter(c, name, type);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static MethodHandle findConstructor(Class<?> c, MethodType type) {
+    try {
+      return LOOKUP.findConstructor(c, type);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static RuntimeException rethrow(Throwable t) {
+    if (t instanceof RuntimeException) {
+      return (RuntimeException) t;
+    }
+    if (t instanceof Error) {
+      throw (Error) t;
+    }
+    return new RuntimeException(t);
+  }
+}
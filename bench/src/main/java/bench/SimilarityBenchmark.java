@@ -0,0 +1,78 @@
+package bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * VectorUtils.vectorSimilarity on pairs of time vectors with different
+ * lengths, length ratios and overlaps. The pairs are cycled through so
+ * that the branch predictor cannot learn a single pair.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SimilarityBenchmark {
+
+  private static final int PAIRS = 64;
+
+  // the length of the shorter vector
+  @Param({"4", "32", "256", "4096"})
+  public int shortLength;
+
+  // the length of the longer vector divided by the shorter one
+  @Param({"1", "10", "1000"})
+  public int lengthRatio;
+
+  // the fraction of points of the shorter vector near points of the other
+  @Param({"0.0", "0.5", "0.95"})
+  public double overlap;
+
+  @Param({"3600"})
+  public double window;
+
+  @Param({"0.7"})
+  public double bar;
+
+  private long[][] shortVectors;
+  private long[][] longVectors;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42);
+    shortVectors = new long[PAIRS][];
+    longVectors = new long[PAIRS][];
+    for (int p = 0; p < PAIRS; p++) {
+      longVectors[p] = TimeVectors.random(random, shortLength * lengthRatio);
+      shortVectors[p] = TimeVectors.correlated(random, longVectors[p], shortLength,
+          overlap, (long) (window / 4));
+    }
+  }
+
+  @Benchmark
+  public double exact() {
+    int p = next++ & (PAIRS - 1);
+    return Kernels.similarity(shortVectors[p], longVectors[p], window);
+  }
+
+  @Benchmark
+  public double thresholded() {
+    int p = next++ & (PAIRS - 1);
+    return Kernels.similarity(shortVectors[p], longVectors[p], window, bar);
+  }
+}
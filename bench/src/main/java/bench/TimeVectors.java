@@ -0,0 +1,59 @@
+package bench;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ * Synthetic sorted time vectors for the benchmarks.
+ */
+final class TimeVectors {
+
+  // one day of seconds, the span of a daily time vector
+  static final long SPAN = 86400L;
+
+  // the start of the synthetic day
+  static final long BASE = 1366934400L;
+
+  private TimeVectors() {
+  }
+
+  // A sorted vector of len distinct random time points within the day
+  static long[] random(Random random, int len) {
+    long[] v = new long[len];
+    for (int i = 0; i < len; i++) {
+      v[i] = BASE + (long) (random.nextDouble() * SPAN * Math.max(1, len / 1000));
+    }
+    Arrays.sort(v);
+    return v;
+  }
+
+  // The distinct points of the sorted vector v rounded down to the grid
+  static long[] discretize(long[] v, long grid) {
+    long[] res = new long[v.length];
+    int n = 0;
+    for (long t : v) {
+      long bucket = Math.floorDiv(t, grid) * grid;
+      if (n == 0 || res[n - 1] != bucket) {
+        res[n++] = bucket;
+      }
+    }
+    return Arrays.copyOf(res, n);
+  }
+
+  // A vector of length len of which about the fraction overlap of the
+  // points repeat points of base within jitter seconds, and the rest are
+  // random
+  static long[] correlated(Random random, long[] base, int len, double overlap, long jitter) {
+    long[] v = new long[len];
+    for (int i = 0; i < len; i++) {
+      if (random.nextDouble() < overlap) {
+        long t = base[random.nextInt(base.length)];
+        v[i] = t + (long) ((random.nextDouble() * 2 - 1) * jitter);
+      } else {
+        v[i] = BASE + (long) (random.nextDouble() * SPAN * Math.max(1, len / 1000));
+      }
+    }
+    Arrays.sort(v);
+    return v;
+  }
+}
@@ -0,0 +1,208 @@
+import java.util.*;
+import java.io.*;
+
+/*
+ * CandidateIndex is an inverted index from time buckets to the users of
+ * one IP group. It is used by PairSim.Reduce to avoid calling
+ * VectorUtils.vectorSimilarity on pairs that cannot reach the similarity
+ * threshold.
+ *
+ * Two time points are common elements when they are within window/2 of
+ * each other. Time points are put into buckets of width floor(window/2)+1,
+ * so two common elements always fall into the same or adjacent buckets.
+ * For a user u and a later user v, the number of time points of u whose
+ * bucket has a neighbour bucket in v is an upper bound on the number of
+ * common elements. A pair is a candidate only if this bound, normalized
+ * the same way as in vectorSimilarity, reaches the threshold, so the
+ * pairs that are skipped are exactly pairs that would not be emitted.
+ */
+
+public class CandidateIndex {
+  // the width of a time bucket
+  long bucketWidth;
+
+  // the number of users in the group
+  int numUsers;
+
+  // the length of each user's time vector
+  int[] lengths;
+
+  // the distinct buckets of each user (sorted) and the number of time
+  // points of the user in each of them
+  long[][] userBuckets;
+  int[][] userCounts;
+
+  // bucket -> users (in increasing order) that have time points in it
+  HashMap<Long, int[]> postings;
+
+  // the time vectors of the users packed for VectorUtils.batchSimilarity:
+  // user u at points[offsets[u], offsets[u+1])
+  long[] points;
+  int[] offsets;
+
+  // scratch state of the callers that do not bring their own
+  Scratch scratch;
+
+  // Scratch state reused across calls of candidates(). The index itself
+  // is read-only once built, so threads can share it as long as each
+  // one uses its own Scratch.
+  public static class Scratch {
+    int[] hits;
+    int[] marks;
+    int[] touched;
+    int stamp;
+
+    public Scratch(CandidateIndex index) {
+      this.hits = new int[index.numUsers];
+      this.marks = new int[index.numUsers];
+      this.touched = new int[index.numUsers];
+      this.stamp = 0;
+    }
+  }
+
+  public CandidateIndex(List<UserActionProfile> users, double window) {
+    this.bucketWidth = (long) Math.floor(window / 2.0) + 1;
+    this.numUsers = users.size();
+    this.lengths = new int[numUsers];
+    this.userBuckets = new long[numUsers][];
+    this.userCounts = new int[numUsers][];
+
+    // collect the distinct buckets of every user and count how many
+    // users fall into each bucket
+    HashMap<Long, Integer> sizes = new HashMap<Long, Integer>();
+    for(int u = 0; u < numUsers; u++) {
+      long[] v = users.get(u).getTimeVector();
+      lengths[u] = v.length;
+      long[] buckets = new long[v.length];
+      int[] counts = new int[v.length];
+      int numBuckets = 0;
+      for(int k = 0; k < v.length; k++) {
+        long b = bucket(v[k]);
+        // time vectors are sorted, so equal buckets are adjacent
+        if(numBuckets > 0 && buckets[numBuckets - 1] == b) {
+          counts[numBuckets - 1]++;
+        }
+        else {
+          buckets[numBuckets] = b;
+          counts[numBuckets] = 1;
+          numBuckets++;
+        }
+      }
+      userBuckets[u] = Arrays.copyOf(buckets, numBuckets);
+      userCounts[u] = Arrays.copyOf(counts, numBuckets);
+      for(int k = 0; k < numBuckets; k++) {
+        Long key = Long.valueOf(buckets[k]);
+        Integer size = sizes.get(key);
+        sizes.put(key, size == null ? 1 : size + 1);
+      }
+    }
+
+    // fill the posting lists; users are added in increasing order
+    this.postings = new HashMap<Long, int[]>(sizes.size() * 2);
+    HashMap<Long, Integer> fill = new HashMap<Long, Integer>(sizes.size() * 2);
+    for(Map.Entry<Long, Integer> e : sizes.entrySet()) {
+      postings.put(e.getKey(), new int[e.getValue()]);
+      fill.put(e.getKey(), 0);
+    }
+    for(int u = 0; u < numUsers; u++) {
+      for(long b : userBuckets[u]) {
+        Long key = Long.valueOf(b);
+        int pos = fill.get(key);
+        postings.get(key)[pos] = u;
+        fill.put(key, pos + 1);
+      }
+    }
+
+    pack(users);
+    this.scratch = null;
+  }
+
+  // For subclasses that propose the candidates in another way
+  CandidateIndex(int numUsers) {
+    this.numUsers = numUsers;
+    this.lengths = new int[numUsers];
+    this.scratch = null;
+  }
+
+  // Pack the time vectors of the users, so that the candidates of a user
+  // are compared in one batch
+  void pack(List<UserActionProfile> users) {
+    offsets = new int[numUsers + 1];
+    points = VectorUtils.pack(users, offsets);
+  }
+
+  // The bucket of a time point, rounding towards negative infinity
+  long bucket(long t) {
+    long b = t / bucketWidth;
+    if(t % bucketWidth < 0)
+      b -= 1;
+    return b;
+  }
+
+  // Find the users j > i that may reach similarity bar with user i.
+  // The candidates are written to out in increasing order and their
+  // number is returned; out must have room for numUsers entries.
+  public int candidates(int i, double bar, int[] out) {
+    if(scratch == null)
+      scratch = new Scratch(this);
+    return candidates(i, bar, out, scratch);
+  }
+
+  public int candidates(int i, double bar, int[] out, Scratch scratch) {
+    // every pair reaches a non-positive threshold
+    if(bar <= 0.0) {
+      int n = 0;
+      for(int j = i + 1; j < numUsers; j++)
+        out[n++] = j;
+      return n;
+    }
+
+    int[] hits = scratch.hits;
+    int[] marks = scratch.marks;
+    int[] touched = scratch.touched;
+    int numTouched = 0;
+    long[] buckets = userBuckets[i];
+    int[] counts = userCounts[i];
+    for(int k = 0; k < buckets.length; k++) {
+      // a new stamp per bucket of user i, so that a user j that appears
+      // in several neighbour buckets is credited only once for it
+      int stamp = ++scratch.stamp;
+      if(stamp == 0) {
+        Arrays.fill(marks, 0);
+        stamp = scratch.stamp = 1;
+      }
+      for(long b = buckets[k] - 1; b <= buckets[k] + 1; b++) {
+        int[] users = postings.get(Long.valueOf(b));
+        if(users == null)
+          continue;
+        // skip the users that are not after i
+        int start = Arrays.binarySearch(users, i + 1);
+        if(start < 0)
+          start = -start - 1;
+        for(int p = start; p < users.length; p++) {
+          int j = users[p];
+          if(marks[j] == stamp)
+            continue;
+          marks[j] = stamp;
+          if(hits[j] == 0)
+            touched[numTouched++] = j;
+          hits[j] += counts[k];
+        }
+      }
+    }
+
+    // keep the users whose bound reaches the threshold, and reset the
+    // scratch counters for the next call
+    Arrays.sort(touched, 0, numTouched);
+    int n = 0;
+    for(int t = 0; t < numTouched; t++) {
+      int j = touched[t];
+      int minLen = Math.min(lengths[i], lengths[j]);
+      int bound = Math.min(hits[j], minLen);
+      if((double) bound / (double) minLen >= bar)
+        out[n++] = j;
+      hits[j] = 0;
+    }
+    return n;
+  }
+}
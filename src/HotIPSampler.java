@@ -0,0 +1,149 @@
+import java.io.IOException;
+import java.util.*;
+import java.io.*;
+
+import org.apache.hadoop.fs.*;
+import org.apache.hadoop.conf.*;
+import org.apache.hadoop.io.*;
+import org.apache.hadoop.mapred.*;
+import org.apache.hadoop.mapred.lib.*;
+import org.apache.hadoop.util.*;
+import org.apache.log4j.Logger;
+
+/*
+ * HotIPSampler is a sampling pre-pass for PairSim. It estimates the
+ * number of users on every ip address from a sample of the input and
+ * writes the heavy ip addresses, which PairSim then splits into a grid
+ * of sub-groups (see ipps.hotIPFile). In the subnet mode of PairSim
+ * (ipps.ipv4Prefix, ipps.ipv6Prefix) the users are counted per subnet.
+ *
+ * Output: "<ip>\t<estimated number of users>"
+ */
+
+public class HotIPSampler extends Configured implements Tool {
+
+ // use log4j for logging
+ private static final Logger sLogger = Logger.getLogger(HotIPSampler.class);
+
+ // the fraction of input records that are sampled
+ public static double sampleRate = 0.01;
+
+ // the estimated number of users above which an ip is heavy
+ public static long hotBar = 20000;
+
+ public static class Map
+   extends MapReduceBase
+   implements Mapper<Text, Text, Text, LongWritable> {
+
+      private static final LongWritable ONE = new LongWritable(1);
+
+      IPPrefix prefix = new IPPrefix(32, 128);
+
+      public void configure(JobConf conf) {
+        sampleRate = conf.getFloat("ipss.sampleRate", 0.01f);
+        prefix = IPPrefix.fromConf(conf);
+      }
+
+      public void map(
+        Text key,
+        Text value,
+        OutputCollector<Text, LongWritable> output,
+        Reporter reporter
+      ) throws IOException {
+
+        // sample on a hash of the record, so that reruns pick the same
+        // records
+        String userid = key.toString();
+        String ip = value.toString().split("\t")[0];
+        int h = (userid.hashCode() * 31 + ip.hashCode()) & Integer.MAX_VALUE;
+        if(h % 1000000 < sampleRate * 1000000) {
+          output.collect(new Text(prefix.subnet(ip)), ONE);
+          reporter.incrCounter("IPSS Stats", "Sampled records", 1);
+        }
+        reporter.progress();
+      }
+ }
+
+ public static class Reduce
+    extends MapReduceBase implements Reducer<Text, LongWritable, Text, LongWritable> {
+
+    public void configure(JobConf conf) {
+      // load parameters
+      sampleRate = conf.getFloat("ipss.sampleRate", 0.01f);
+      hotBar = conf.getLong("ipss.hotBar", 20000);
+    }
+
+    public void reduce(
+      Text key,
+      Iterator<LongWritable> values,
+      OutputCollector<Text, LongWritable> output,
+      Reporter reporter
+    ) throws IOException {
+
+      long sampled = 0;
+      while(values.hasNext())
+        sampled += values.next().get();
+
+      long estimate = (long) (sampled / sampleRate);
+      if(estimate >= hotBar) {
+        output.collect(key, new LongWritable(estimate));
+        reporter.incrCounter("IPSS Stats", "Heavy ips", 1);
+      }
+    }
+ }
+
+ public int run(String[] args) throws Exception {
+   if (args.length < 2) {
+     System.err.println(
+         "Not enough arguments!\nRun as:\n"
+         + "hadoop jar PairSim.jar HotIPSampler [options] "
+         + "INPUT_DIR OUTPUT_DIR\n\n"
+
+         + "Available options are as below:\n"
+         + "ipss.sampleRate\tthe fraction of input records that are "
+         + "sampled\n"
+         + "ipss.hotBar\tthe estimated number of users above which an ip "
+         + "is heavy\n\n"
+
+         + "Input format: the input format of PairSim\n"
+         + "Pass OUTPUT_DIR to PairSim with -D ipps.hotIPFile=OUTPUT_DIR\n"
+      );
+     return 1;
+   }
+
+   Configuration configuration = getConf();
+   JobConf conf = new JobConf(configuration, HotIPSampler.class);
+   conf.setJobName("ip_action_hot_ip_sample");
+
+   conf.setOutputKeyClass(Text.class);
+   conf.setOutputValueClass(LongWritable.class);
+   conf.setMapperClass(Map.class);
+   conf.setCombinerClass(LongSumReducer.class);
+   conf.setReducerClass(Reduce.class);
+   conf.setInputFormat(KeyValueTextInputFormat.class);
+   conf.setOutputFormat(TextOutputFormat.class);
+   conf.setNumReduceTasks(1);
+
+   // set the input directory
+   FileInputFormat.setInputPaths(conf, new Path(args[0]));
+
+   // clean the output directory
+   FileSystem fs = FileSystem.get(conf);
+   try {
+     fs.delete(new Path(args[1]),true);
+   } catch (IOException e) {
+     System.err.println(e);
+   }
+
+   // set the output directory
+   FileOutputFormat.setOutputPath(conf, new Path(args[1]));
+   JobClient.runJob(conf);
+   return 0;
+ }
+
+ public static void main(String[] args) throws Exception {
+   // Let ToolRunner handle generic command-line options
+   int res = ToolRunner.run(new Configuration(), new HotIPSampler(), args);
+   System.exit(res);
+ }
+}
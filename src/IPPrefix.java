@@ -0,0 +1,218 @@
+import java.util.*;
+
+import org.apache.hadoop.mapred.*;
+
+/*
+ * IPPrefix maps an ip address to the subnet that it is grouped by in
+ * the subnet mode of PairSim (ipps.ipv4Prefix, ipps.ipv6Prefix). The
+ * address is parsed into its 4 or 16 bytes, masked to the prefix length
+ * and written back as "a.b.c.0/24" or "2001:db8:1::/48", so all the
+ * spellings of an address give the same subnet. Strings that are not
+ * ip addresses are kept as they are.
+ *
+ * An IPPrefix keeps a scratch buffer and is not thread safe.
+ */
+
+public class IPPrefix {
+  // the prefix lengths of the subnets
+  int ipv4Prefix;
+  int ipv6Prefix;
+
+  // the bytes of the address being mapped
+  byte[] addr = new byte[16];
+
+  public IPPrefix(int ipv4Prefix, int ipv6Prefix) {
+    this.ipv4Prefix = Math.max(0, Math.min(32, ipv4Prefix));
+    this.ipv6Prefix = Math.max(0, Math.min(128, ipv6Prefix));
+  }
+
+  // The subnet mode configured for a job; exact ips by default
+  public static IPPrefix fromConf(JobConf conf) {
+    return new IPPrefix(conf.getInt("ipps.ipv4Prefix", 32),
+        conf.getInt("ipps.ipv6Prefix", 128));
+  }
+
+  // Whether every address is its own group, as without the subnet mode
+  public boolean isExact() {
+    return ipv4Prefix == 32 && ipv6Prefix == 128;
+  }
+
+  // The subnet of an ip address, or the string itself if it is not an
+  // address or its prefix covers the whole address
+  public String subnet(String ip) {
+    int len = parse(ip, addr);
+    if(len == 4 && ipv4Prefix < 32) {
+      mask(addr, len, ipv4Prefix);
+      return format(addr, len) + "/" + ipv4Prefix;
+    }
+    if(len == 16 && ipv6Prefix < 128) {
+      mask(addr, len, ipv6Prefix);
+      return format(addr, len) + "/" + ipv6Prefix;
+    }
+    return ip;
+  }
+
+  // Parse an IPv4 or IPv6 address into out. Returns the number of bytes
+  // of the address, 4 or 16, or 0 if the string is not an address.
+  static int parse(String ip, byte[] out) {
+    if(ip.indexOf(':') >= 0) {
+      // drop the zone of a link local address
+      int zone = ip.indexOf('%');
+      return parseIPv6(zone < 0 ? ip : ip.substring(0, zone), out) ? 16 : 0;
+    }
+    return parseIPv4(ip, 0, ip.length(), out, 0) ? 4 : 0;
+  }
+
+  // Parse the dotted quad in s[from, to) into out[off, off+4)
+  static boolean parseIPv4(String s, int from, int to, byte[] out, int off) {
+    int octets = 0;
+    int pos = from;
+    while(octets < 4) {
+      int value = 0;
+      int digits = 0;
+      while(pos < to && digits < 4) {
+        char c = s.charAt(pos);
+        if(c < '0' || c > '9')
+          break;
+        value = value * 10 + (c - '0');
+        digits++;
+        pos++;
+      }
+      if(digits == 0 || digits > 3 || value > 255)
+        return false;
+      out[off + octets++] = (byte) value;
+      if(octets < 4) {
+        if(pos >= to || s.charAt(pos) != '.')
+          return false;
+        pos++;
+      }
+    }
+    return pos == to;
+  }
+
+  // Parse an IPv6 address with an optional "::" and an optional dotted
+  // quad at the end into out[0, 16)
+  static boolean parseIPv6(String s, byte[] out) {
+    int[] head = new int[8];
+    int[] tail = new int[8];
+    int gap = s.indexOf("::");
+    int numHead, numTail;
+    if(gap < 0) {
+      numHead = parseGroups(s, 0, s.length(), head, true, out);
+      numTail = 0;
+      if(numHead != 8)
+        return false;
+    }
+    else {
+      if(s.indexOf("::", gap + 1) >= 0)
+        return false;
+      numHead = parseGroups(s, 0, gap, head, false, out);
+      numTail = parseGroups(s, gap + 2, s.length(), tail, true, out);
+      if(numHead < 0 || numTail < 0 || numHead + numTail > 7)
+        return false;
+    }
+
+    // the groups of the head, zeros for the gap, the groups of the tail
+    int[] groups = new int[8];
+    for(int g = 0; g < numHead; g++)
+      groups[g] = head[g];
+    for(int g = 0; g < numTail; g++)
+      groups[8 - numTail + g] = tail[g];
+    for(int g = 0; g < 8; g++) {
+      out[2 * g] = (byte) (groups[g] >> 8);
+      out[2 * g + 1] = (byte) groups[g];
+    }
+    return true;
+  }
+
+  // Parse the colon separated hex groups in s[from, to). A dotted quad
+  // is allowed as the last part if isLast, and counts as two groups.
+  // Returns the number of groups, or -1 on a syntax error.
+  static int parseGroups(String s, int from, int to, int[] groups,
+      boolean isLast, byte[] scratch) {
+    if(from == to)
+      return 0;
+    int n = 0;
+    int pos = from;
+    while(true) {
+      int end = s.indexOf(':', pos);
+      if(end < 0 || end > to)
+        end = to;
+      if(isLast && end == to && s.indexOf('.', pos) >= 0 && s.indexOf('.', pos) < to) {
+        if(n > 6 || !parseIPv4(s, pos, to, scratch, 0))
+          return -1;
+        groups[n++] = ((scratch[0] & 0xff) << 8) | (scratch[1] & 0xff);
+        groups[n++] = ((scratch[2] & 0xff) << 8) | (scratch[3] & 0xff);
+        return n;
+      }
+      if(end == pos || end - pos > 4 || n >= 8)
+        return -1;
+      int value = 0;
+      for(int k = pos; k < end; k++) {
+        int digit = Character.digit(s.charAt(k), 16);
+        if(digit < 0)
+          return -1;
+        value = value * 16 + digit;
+      }
+      groups[n++] = value;
+      if(end == to)
+        return n;
+      pos = end + 1;
+      if(pos == to)
+        return -1; // a trailing single colon
+    }
+  }
+
+  // Clear the bits of the address after the first prefix bits
+  static void mask(byte[] addr, int len, int prefix) {
+    for(int k = 0; k < len; k++) {
+      int keep = prefix - 8 * k;
+      if(keep >= 8)
+        continue;
+      addr[k] = keep <= 0 ? 0 : (byte) (addr[k] & (0xff << (8 - keep)));
+    }
+  }
+
+  // Write an address as a dotted quad, or as hex groups with the longest
+  // run of zero groups written as "::" (RFC 5952)
+  static String format(byte[] addr, int len) {
+    StringBuilder res = new StringBuilder();
+    if(len == 4) {
+      for(int k = 0; k < 4; k++) {
+        if(k > 0)
+          res.append('.');
+        res.append(addr[k] & 0xff);
+      }
+      return res.toString();
+    }
+
+    int[] groups = new int[8];
+    for(int g = 0; g < 8; g++)
+      groups[g] = ((addr[2 * g] & 0xff) << 8) | (addr[2 * g + 1] & 0xff);
+    int bestStart = -1, bestLen = 1;
+    for(int g = 0; g < 8; ) {
+      if(groups[g] != 0) {
+        g++;
+        continue;
+      }
+      int start = g;
+      while(g < 8 && groups[g] == 0)
+        g++;
+      if(g - start > bestLen) {
+        bestStart = start;
+        bestLen = g - start;
+      }
+    }
+    for(int g = 0; g < 8; g++) {
+      if(g == bestStart) {
+        res.append("::");
+        g += bestLen - 1;
+        continue;
+      }
+      if(res.length() > 0 && res.charAt(res.length() - 1) != ':')
+        res.append(':');
+      res.append(Integer.toHexString(groups[g]));
+    }
+    return res.toString();
+  }
+}
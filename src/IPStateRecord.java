@@ -0,0 +1,90 @@
+import java.io.*;
+import java.util.*;
+
+import org.apache.hadoop.io.*;
+
+/*
+ * A record of the incremental mode of PairSimDelta: the stored profile
+ * of a user on an ip, a new profile from the delta input, a similar
+ * pair from the stored state, or a marker for a pair whose decision has
+ * to be re-evaluated. Only the fields of the record type are written.
+ */
+
+public class IPStateRecord implements Writable {
+  public static final byte OLD_PROFILE = 0;
+  public static final byte NEW_PROFILE = 1;
+  public static final byte PAIR = 2;
+  public static final byte AFFECTED = 3;
+
+  byte type;
+  UserActionProfile user;
+  UserPairIDs pair;
+  SimMetric sim;
+
+  // Used by Hadoop to instantiate the value before readFields
+  public IPStateRecord() {
+    this.type = AFFECTED;
+    this.user = null;
+    this.pair = null;
+    this.sim = null;
+  }
+
+  public IPStateRecord(byte type, UserActionProfile user) {
+    this.type = type;
+    this.user = user;
+    this.pair = null;
+    this.sim = null;
+  }
+
+  public IPStateRecord(UserPairIDs pair, SimMetric sim) {
+    this.type = PAIR;
+    this.user = null;
+    this.pair = pair;
+    this.sim = sim;
+  }
+
+  public void write(DataOutput out) throws IOException {
+    out.writeByte(this.type);
+    if(this.type == OLD_PROFILE || this.type == NEW_PROFILE)
+      this.user.write(out);
+    else if(this.type == PAIR) {
+      this.pair.write(out);
+      this.sim.write(out);
+    }
+  }
+
+  // The fields are allocated on every call, so the records can be kept
+  // while Hadoop reuses the object
+  public void readFields(DataInput in) throws IOException {
+    this.type = in.readByte();
+    this.user = null;
+    this.pair = null;
+    this.sim = null;
+    if(this.type == OLD_PROFILE || this.type == NEW_PROFILE) {
+      this.user = new UserActionProfile();
+      this.user.readFields(in);
+    }
+    else if(this.type == PAIR) {
+      this.pair = new UserPairIDs();
+      this.pair.readFields(in);
+      this.sim = new SimMetric();
+      this.sim.readFields(in);
+    }
+  }
+
+  public byte getType() {
+    return this.type;
+  }
+
+  public UserActionProfile getUser() {
+    return this.user;
+  }
+
+  public UserPairIDs getPair() {
+    return this.pair;
+  }
+
+  public SimMetric getSim() {
+    return this.sim;
+  }
+}
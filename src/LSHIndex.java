@@ -0,0 +1,126 @@
+import java.util.*;
+import java.io.*;
+
+/*
+ * LSHIndex proposes the candidate pairs of a very large IP group with
+ * MinHash and banded locality sensitive hashing, for the approximate
+ * mode of PairSim.Reduce (ipps.lshMinUsers). Unlike CandidateIndex it
+ * may miss pairs that reach the threshold, but the candidates are
+ * still verified with VectorUtils.vectorSimilarity, so every emitted
+ * pair is a true one. LSHRecall measures how many pairs are missed.
+ *
+ * The set of a user is the set of the windows of its time points, on
+ * two grids of width window shifted by half a window, so two common
+ * elements always share a window on at least one grid. The signature
+ * of a user holds bands * rows MinHash values of the set, and two
+ * users are candidates when all the rows of at least one band agree.
+ */
+
+public class LSHIndex extends CandidateIndex {
+  // the users (in increasing order) of every bucket of every band
+  int[][] bucketUsers;
+
+  // the bucket of each user in each band, bucketOf[band][user]
+  int[][] bucketOf;
+
+  public LSHIndex(List<UserActionProfile> users, double window, int bands, int rows) {
+    super(users.size());
+    long width = Math.max(1, (long) Math.floor(window));
+    int numHashes = bands * rows;
+    long[] seeds = new long[numHashes];
+    for(int h = 0; h < numHashes; h++)
+      seeds[h] = mix(0x9E3779B97F4A7C15L * (h + 1));
+
+    // the band keys of every user
+    long[][] bandKeys = new long[bands][numUsers];
+    long[] signature = new long[numHashes];
+    for(int u = 0; u < numUsers; u++) {
+      long[] v = users.get(u).getTimeVector();
+      lengths[u] = v.length;
+      Arrays.fill(signature, Long.MAX_VALUE);
+      for(int k = 0; k < v.length; k++) {
+        // the windows of the point on the two grids
+        long w0 = Math.floorDiv(v[k], width) * 2;
+        long w1 = Math.floorDiv(v[k] + width / 2, width) * 2 + 1;
+        for(int h = 0; h < numHashes; h++) {
+          long x0 = mix(w0 ^ seeds[h]);
+          long x1 = mix(w1 ^ seeds[h]);
+          long x = Math.min(x0, x1);
+          if(x < signature[h])
+            signature[h] = x;
+        }
+      }
+      for(int b = 0; b < bands; b++) {
+        long key = b;
+        for(int r = 0; r < rows; r++)
+          key = mix(key * 31 + signature[b * rows + r]);
+        bandKeys[b][u] = key;
+      }
+    }
+
+    // group the users of each band by key
+    Vector<int[]> lists = new Vector<int[]>();
+    bucketOf = new int[bands][numUsers];
+    for(int b = 0; b < bands; b++) {
+      HashMap<Long, Integer> buckets = new HashMap<Long, Integer>();
+      int[] sizes = new int[numUsers];
+      int first = lists.size();
+      int numBuckets = 0;
+      for(int u = 0; u < numUsers; u++) {
+        Long key = Long.valueOf(bandKeys[b][u]);
+        Integer bucket = buckets.get(key);
+        if(bucket == null) {
+          bucket = numBuckets++;
+          buckets.put(key, bucket);
+        }
+        bucketOf[b][u] = first + bucket;
+        sizes[bucket]++;
+      }
+      int[] fill = new int[numBuckets];
+      for(int k = 0; k < numBuckets; k++)
+        lists.addElement(new int[sizes[k]]);
+      // users are added in increasing order
+      for(int u = 0; u < numUsers; u++) {
+        int bucket = bucketOf[b][u] - first;
+        lists.get(first + bucket)[fill[bucket]++] = u;
+      }
+    }
+    bucketUsers = lists.toArray(new int[lists.size()][]);
+    pack(users);
+  }
+
+  // The users j > i that share a band bucket with user i, in increasing
+  // order. The threshold is checked by the exact similarity only.
+  public int candidates(int i, double bar, int[] out, Scratch scratch) {
+    int[] marks = scratch.marks;
+    int stamp = ++scratch.stamp;
+    if(stamp == 0) {
+      Arrays.fill(marks, 0);
+      stamp = scratch.stamp = 1;
+    }
+    int n = 0;
+    for(int b = 0; b < bucketOf.length; b++) {
+      int[] users = bucketUsers[bucketOf[b][i]];
+      // skip the users that are not after i
+      int start = Arrays.binarySearch(users, i + 1);
+      if(start < 0)
+        start = -start - 1;
+      for(int p = start; p < users.length; p++) {
+        int j = users[p];
+        if(marks[j] == stamp)
+          continue;
+        marks[j] = stamp;
+        out[n++] = j;
+      }
+    }
+    Arrays.sort(out, 0, n);
+    return n;
+  }
+
+  // 64-bit finalizer of SplitMix64
+  static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+}
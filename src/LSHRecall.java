@@ -0,0 +1,220 @@
+import java.io.IOException;
+import java.util.*;
+import java.io.*;
+
+import org.apache.hadoop.fs.*;
+import org.apache.hadoop.conf.*;
+import org.apache.hadoop.io.*;
+import org.apache.hadoop.mapred.*;
+import org.apache.hadoop.mapred.lib.*;
+import org.apache.hadoop.util.*;
+import org.apache.log4j.Logger;
+
+/*
+ * LSHRecall measures the recall of the approximate LSH mode of PairSim
+ * (ipps.lshMinUsers). It groups the input like PairSim, and on a sample
+ * of the groups with at least iplr.minUsers users it finds the similar
+ * pairs both with the exact path and with LSHIndex. As the LSH pairs
+ * are verified exactly, they are a subset of the exact pairs, and the
+ * recall is the fraction of the exact pairs that LSH finds.
+ *
+ * Output: "<group>\t<users>\t<exact pairs>\t<LSH pairs>\t<recall>"
+ * The overall recall is logged from the counters of the job. The
+ * counters of PairSim are kept apart for the two runs, as "Exact IPPS
+ * Stats", "LSH IPPS Stats" and so on.
+ */
+
+public class LSHRecall extends Configured implements Tool {
+
+ // use log4j for logging
+ private static final Logger sLogger = Logger.getLogger(LSHRecall.class);
+
+ // the fraction of the groups that are measured
+ public static double sampleRate = 0.1;
+
+ // the minimum number of users of a measured group
+ public static int minUsers = 1000;
+
+ // Passes the counters of a run of PairSim.Reduce on under
+ // "<run> <group>", so that the two runs of a group are counted apart
+ // and the IPLR counters count the measurement only
+ static class RunReporter implements Reporter {
+   Reporter reporter;
+   String run;
+
+   RunReporter(Reporter reporter, String run) {
+     this.reporter = reporter;
+     this.run = run;
+   }
+
+   public void setStatus(String status) {
+     reporter.setStatus(status);
+   }
+
+   public Counters.Counter getCounter(Enum<?> name) {
+     return reporter.getCounter(name);
+   }
+
+   public Counters.Counter getCounter(String group, String name) {
+     return reporter.getCounter(run + " " + group, name);
+   }
+
+   public void incrCounter(Enum<?> key, long amount) {
+     reporter.incrCounter(key, amount);
+   }
+
+   public void incrCounter(String group, String counter, long amount) {
+     reporter.incrCounter(run + " " + group, counter, amount);
+   }
+
+   public InputSplit getInputSplit() {
+     return reporter.getInputSplit();
+   }
+
+   public float getProgress() {
+     return reporter.getProgress();
+   }
+
+   public void progress() {
+     reporter.progress();
+   }
+ }
+
+ public static class Reduce
+    extends MapReduceBase implements Reducer<Text, UserActionProfile, Text, Text> {
+
+    PairSim.Reduce simReduce = new PairSim.Reduce();
+
+    public void configure(JobConf conf) {
+      simReduce.configure(conf);
+      sampleRate = conf.getFloat("iplr.sampleRate", 0.1f);
+      minUsers = conf.getInt("iplr.minUsers", 1000);
+    }
+
+    public void close() throws IOException {
+      simReduce.close();
+    }
+
+    public void reduce(
+      Text key,
+      Iterator<UserActionProfile> values,
+      OutputCollector<Text, Text> output,
+      Reporter reporter
+    ) throws IOException {
+      // sample on a hash of the group, so that reruns pick the same groups
+      int h = key.hashCode() & Integer.MAX_VALUE;
+      if(h % 1000000 >= sampleRate * 1000000)
+        return;
+
+      Vector<UserActionProfile> users = new Vector<UserActionProfile>();
+      while(values.hasNext()) {
+        UserActionProfile value = values.next();
+        users.addElement(new UserActionProfile(value.getID(), value.getTimeVector()));
+      }
+      if(users.size() < minUsers)
+        return;
+
+      // run the group through PairSim.Reduce with LSH off and on
+      final HashSet<UserPairIDs> exactPairs = new HashSet<UserPairIDs>();
+      final HashSet<UserPairIDs> lshPairs = new HashSet<UserPairIDs>();
+      simReduce.reduce(key, users.iterator(), 0, new OutputCollector<UserPairIDs, SimMetric>() {
+        public void collect(UserPairIDs pair, SimMetric sim) {
+          exactPairs.add(new UserPairIDs(pair.getUID1(), pair.getUID2()));
+        }
+      }, new RunReporter(reporter, "Exact"));
+      simReduce.reduce(key, users.iterator(), 1, new OutputCollector<UserPairIDs, SimMetric>() {
+        public void collect(UserPairIDs pair, SimMetric sim) {
+          lshPairs.add(new UserPairIDs(pair.getUID1(), pair.getUID2()));
+        }
+      }, new RunReporter(reporter, "LSH"));
+
+      int found = 0;
+      for(UserPairIDs pair : lshPairs) {
+        if(exactPairs.contains(pair))
+          found++;
+      }
+      if(found != lshPairs.size())
+        throw new IOException("LSH emitted pairs that the exact path did not in " + key);
+      double recall = exactPairs.isEmpty() ? 1.0 : (double) found / exactPairs.size();
+      output.collect(key, new Text(users.size() + "\t" + exactPairs.size()
+          + "\t" + lshPairs.size() + "\t" + recall));
+
+      reporter.incrCounter("IPLR Stats", "Groups measured", 1);
+      reporter.incrCounter("IPLR Stats", "Exact pairs", exactPairs.size());
+      reporter.incrCounter("IPLR Stats", "LSH pairs", lshPairs.size());
+      reporter.incrCounter("IPLR Stats", "Missed pairs", exactPairs.size() - found);
+    }
+ }
+
+ public int run(String[] args) throws Exception {
+   if (args.length < 2) {
+     System.err.println(
+         "Not enough arguments!\nRun as:\n"
+         + "hadoop jar PairSim.jar LSHRecall [options] "
+         + "INPUT_DIR OUTPUT_DIR\n\n"
+
+         + "Available options are as below:\n"
+         + "the ipps.* options of PairSim, in particular ipps.lshBands and "
+         + "ipps.lshRows; ipps.exhaustive and ipps.slowIPs are always off\n"
+         + "iplr.sampleRate\tthe fraction of the groups that are measured "
+         + "(default 0.1)\n"
+         + "iplr.minUsers\tthe minimum number of users of a measured group "
+         + "(default 1000)\n\n"
+
+         + "Input format: uid\tip\ttimevector\n"
+         + "timevector format: t1,t2,t3,...\n"
+      );
+     return 1;
+   }
+
+   Configuration configuration = getConf();
+   JobConf conf = new JobConf(configuration, LSHRecall.class);
+   conf.setJobName("ip_action_lsh_recall");
+   // LSH is only used with the candidate index
+   conf.setBoolean("ipps.exhaustive", false);
+   // every group is compared twice, so PairSim's slowest groups would be
+   // reported twice
+   conf.setInt("ipps.slowIPs", 0);
+
+   conf.setMapOutputKeyClass(Text.class);
+   conf.setMapOutputValueClass(UserActionProfile.class);
+   conf.setOutputKeyClass(Text.class);
+   conf.setOutputValueClass(Text.class);
+   conf.setMapperClass(PairSimMapper.class);
+   conf.setPartitionerClass(PairSimPartitioner.class);
+   conf.setReducerClass(Reduce.class);
+   conf.setInputFormat(KeyValueTextInputFormat.class);
+   conf.setOutputFormat(TextOutputFormat.class);
+   conf.setNumReduceTasks(PairSim.reducers);
+
+   // set the input directory
+   FileInputFormat.setInputPaths(conf, new Path(args[0]));
+
+   // clean the output directory
+   FileSystem fs = FileSystem.get(conf);
+   try {
+     fs.delete(new Path(args[1]),true);
+   } catch (IOException e) {
+     System.err.println(e);
+   }
+
+   // set the output directory
+   FileOutputFormat.setOutputPath(conf, new Path(args[1]));
+   RunningJob job = JobClient.runJob(conf);
+
+   Counters counters = job.getCounters();
+   long exact = counters.findCounter("IPLR Stats", "Exact pairs").getCounter();
+   long missed = counters.findCounter("IPLR Stats", "Missed pairs").getCounter();
+   long groups = counters.findCounter("IPLR Stats", "Groups measured").getCounter();
+   double recall = exact == 0 ? 1.0 : (double) (exact - missed) / exact;
+   sLogger.info("groups measured: " + groups + ", exact pairs: " + exact
+       + ", missed pairs: " + missed + ", recall: " + recall);
+   return 0;
+ }
+
+ public static void main(String[] args) throws Exception {
+   // Let ToolRunner handle generic command-line options
+   int res = ToolRunner.run(new Configuration(), new LSHRecall(), args);
+   System.exit(res);
+ }
+}
@@ -0,0 +1,563 @@
+import java.io.IOException;
+import java.util.*;
+import java.io.*;
+import java.util.concurrent.*;
+
+import org.apache.hadoop.conf.*;
+import org.apache.hadoop.io.*;
+import org.apache.hadoop.mapred.*;
+import org.apache.hadoop.util.*;
+import org.apache.log4j.Logger;
+
+/*
+ * LocalEngine runs PairSim and PairPrune in a single process on local
+ * files, without submitting a job. It is meant for parameter experiments
+ * and for small daily deltas.
+ *
+ * Input records are mapped with PairSimMapper and grouped by key in
+ * memory. When the buffered records exceed ipl.memoryMB they are sorted
+ * and spilled to a run file, and the runs are merged when grouping is
+ * done. Every group is handed to PairSim.Reduce on a pool of ipl.threads
+ * threads, and the similar pairs are aggregated into PairEvidence. The
+ * evidence table is held to ipl.memoryMB the same way: it is spilled
+ * as runs sorted by user pair, which are merged when the decisions are
+ * written with PairPrune.emitDecision, sorted by user pair. All ipps.*
+ * and ippp.* options apply.
+ *
+ * Input: a local file or directory of files with "uid\tip\ttimevector"
+ * Output: a local file with "uid1\tuid2\tB|L|S" lines, or the adjacency
+ * lists of PairPrune with ippp.adjacency
+ */
+
+public class LocalEngine extends Configured implements Tool {
+
+ // use log4j for logging
+ private static final Logger sLogger = Logger.getLogger(LocalEngine.class);
+
+ // number of threads that process ip groups
+ public static int threads = Runtime.getRuntime().availableProcessors();
+
+ // memory budget of the buffered input records, and of the evidence
+ // table, in MB
+ public static int memoryMB = 256;
+
+ // A mapped input record
+ static class Record {
+   String key;
+   UserActionProfile user;
+
+   Record(String key, UserActionProfile user) {
+     this.key = key;
+     this.user = user;
+   }
+
+   // rough heap footprint of the record
+   long size() {
+     return 96 + 2 * (key.length() + user.getID().length())
+         + 8 * user.getTimeVector().length;
+   }
+ }
+
+ // Reads back a sorted run of records written by spill()
+ static class RunReader {
+   DataInputStream in;
+   int run;
+   Record current;
+
+   RunReader(File file, int run) throws IOException {
+     this.in = new DataInputStream(new BufferedInputStream(
+         new FileInputStream(file), 1 << 16));
+     this.run = run;
+     advance();
+   }
+
+   void advance() throws IOException {
+     if(!in.readBoolean()) {
+       current = null;
+       in.close();
+       return;
+     }
+     String key = in.readUTF();
+     UserActionProfile user = new UserActionProfile();
+     user.readFields(in);
+     current = new Record(key, user);
+   }
+ }
+
+ // Reads back a sorted run of pair evidence written by spillTable()
+ static class PairRunReader {
+   DataInputStream in;
+   UserPairIDs pair;
+   PairEvidence evidence;
+
+   PairRunReader(File file) throws IOException {
+     this.in = new DataInputStream(new BufferedInputStream(
+         new FileInputStream(file), 1 << 16));
+     advance();
+   }
+
+   void advance() throws IOException {
+     if(!in.readBoolean()) {
+       pair = null;
+       evidence = null;
+       in.close();
+       return;
+     }
+     pair = new UserPairIDs();
+     pair.readFields(in);
+     evidence = new PairEvidence();
+     evidence.readFields(in);
+   }
+ }
+
+ // Records are grouped by key; the sort is stable, so records with the
+ // same key stay in input order
+ static final Comparator<Record> RECORD_ORDER = new Comparator<Record>() {
+   public int compare(Record a, Record b) {
+     return a.key.compareTo(b.key);
+   }
+ };
+
+ Vector<Record> buffer = new Vector<Record>();
+ long bufferSize = 0;
+ Vector<File> runs = new Vector<File>();
+ File tmpDir;
+
+ // similar pairs aggregated over the groups since the last spillTable()
+ HashMap<UserPairIDs, PairEvidence> table = new HashMap<UserPairIDs, PairEvidence>();
+ long tableSize = 0;
+ Vector<File> tableRuns = new Vector<File>();
+
+ // rough heap footprint of a table entry, with room for the audit ips
+ static long entrySize(UserPairIDs pair) {
+   return 160 + 2 * (pair.getUID1().length() + pair.getUID2().length())
+       + 96 * PairEvidence.auditIPs;
+ }
+
+ void add(Record record) throws IOException {
+   buffer.addElement(record);
+   bufferSize += record.size();
+   if(bufferSize > (long) memoryMB << 20)
+     spill();
+ }
+
+ // sort the buffered records and write them to a new run file
+ void spill() throws IOException {
+   Collections.sort(buffer, RECORD_ORDER);
+   File file = File.createTempFile("ipl-run-", ".bin", tmpDir);
+   file.deleteOnExit();
+   DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+       new FileOutputStream(file), 1 << 16));
+   try {
+     for(Record record : buffer) {
+       out.writeBoolean(true);
+       out.writeUTF(record.key);
+       record.user.write(out);
+     }
+     out.writeBoolean(false);
+   } finally {
+     out.close();
+   }
+   sLogger.info("spilled " + buffer.size() + " records to " + file);
+   runs.addElement(file);
+   buffer.clear();
+   bufferSize = 0;
+ }
+
+ // sort the evidence table by user pair and write it to a new run file;
+ // called with the table locked, or once the workers are done
+ void spillTable() throws IOException {
+   UserPairIDs[] pairs = table.keySet().toArray(new UserPairIDs[table.size()]);
+   Arrays.sort(pairs);
+   File file = File.createTempFile("ipl-pairs-", ".bin", tmpDir);
+   file.deleteOnExit();
+   DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+       new FileOutputStream(file), 1 << 16));
+   try {
+     for(UserPairIDs pair : pairs) {
+       out.writeBoolean(true);
+       pair.write(out);
+       table.get(pair).write(out);
+     }
+     out.writeBoolean(false);
+   } finally {
+     out.close();
+   }
+   sLogger.info("spilled " + pairs.length + " user pairs to " + file);
+   tableRuns.addElement(file);
+   table.clear();
+   tableSize = 0;
+ }
+
+ // Read the input files and map every line with PairSimMapper
+ void readInput(File input, PairSimMapper mapper) throws IOException {
+   File[] files;
+   if(input.isDirectory()) {
+     files = input.listFiles();
+     Arrays.sort(files);
+   }
+   else files = new File[] { input };
+
+   OutputCollector<Text, UserActionProfile> collector =
+       new OutputCollector<Text, UserActionProfile>() {
+     public void collect(Text key, UserActionProfile value) throws IOException {
+       // the mapper reuses the profile, but not its time vector
+       add(new Record(key.toString(),
+           new UserActionProfile(value.getID(), value.getTimeVector())));
+     }
+   };
+
+   for(File file : files) {
+     if(file.isDirectory() || file.getName().startsWith("_")
+         || file.getName().startsWith("."))
+       continue;
+     BufferedReader reader = new BufferedReader(new FileReader(file));
+     try {
+       String line;
+       while((line = reader.readLine()) != null) {
+         // split like KeyValueTextInputFormat: key up to the first tab
+         int tab = line.indexOf('\t');
+         if(tab < 0)
+           continue;
+         mapper.map(new Text(line.substring(0, tab)),
+             new Text(line.substring(tab + 1)), collector, Reporter.NULL);
+       }
+     } finally {
+       reader.close();
+     }
+   }
+ }
+
+ // Hand the groups to the workers in key order. Holding at most two
+ // groups per thread in flight keeps the memory bounded.
+ void processGroups(final JobConf conf) throws Exception {
+   ExecutorService pool = Executors.newFixedThreadPool(threads);
+   final Semaphore inFlight = new Semaphore(threads * 2);
+   // every worker gets its own reducer, which may have its own pool
+   // (ipps.reduceThreads); all of them are closed at the end
+   final Vector<PairSim.Reduce> created = new Vector<PairSim.Reduce>();
+   final ThreadLocal<PairSim.Reduce> reducers = new ThreadLocal<PairSim.Reduce>() {
+     protected PairSim.Reduce initialValue() {
+       PairSim.Reduce reduce = new PairSim.Reduce();
+       reduce.configure(conf);
+       created.addElement(reduce);
+       return reduce;
+     }
+   };
+   Vector<Future<Object>> futures = new Vector<Future<Object>>();
+
+   GroupIterator groups = new GroupIterator();
+   int numGroups = 0;
+   while(groups.hasNext()) {
+     final String key = groups.nextKey();
+     final Vector<UserActionProfile> users = groups.nextUsers();
+     inFlight.acquire();
+     futures.addElement(pool.submit(new Callable<Object>() {
+       public Object call() throws IOException {
+         try {
+           processGroup(reducers.get(), key, users);
+         } finally {
+           inFlight.release();
+         }
+         return null;
+       }
+     }));
+     numGroups++;
+   }
+
+   try {
+     for(Future<Object> future : futures)
+       future.get();
+   } finally {
+     // let the workers finish their current group before their reducers
+     // are closed
+     pool.shutdownNow();
+     pool.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+     for(PairSim.Reduce reduce : created)
+       reduce.close();
+   }
+   sLogger.info("ip groups processed: " + numGroups);
+ }
+
+ // Run PairSim.Reduce on one group and merge its similar pairs into the
+ // evidence table
+ void processGroup(PairSim.Reduce reduce, String key,
+     Vector<UserActionProfile> users) throws IOException {
+   final HashMap<UserPairIDs, PairEvidence> local =
+       new HashMap<UserPairIDs, PairEvidence>();
+   OutputCollector<UserPairIDs, SimMetric> collector =
+       new OutputCollector<UserPairIDs, SimMetric>() {
+     public void collect(UserPairIDs pair, SimMetric sim) {
+       // the evidence of both orientations is merged, as in PairPrune
+       pair.canonicalize();
+       PairEvidence evidence = new PairEvidence(sim,
+           PairPrune.tvSimBarL, PairPrune.tvSimBarS);
+       PairEvidence current = local.get(pair);
+       if(current == null) // PairSim.emitPair reuses the pair
+         local.put(new UserPairIDs(pair.getUID1(), pair.getUID2()), evidence);
+       else current.merge(evidence);
+     }
+   };
+   reduce.reduce(new Text(key), users.iterator(), collector, Reporter.NULL);
+
+   synchronized(table) {
+     for(Map.Entry<UserPairIDs, PairEvidence> e : local.entrySet()) {
+       PairEvidence current = table.get(e.getKey());
+       if(current == null) {
+         table.put(e.getKey(), e.getValue());
+         tableSize += entrySize(e.getKey());
+       }
+       else current.merge(e.getValue());
+     }
+     if(tableSize > (long) memoryMB << 20)
+       spillTable();
+   }
+ }
+
+ // Iterates over the groups of records with the same key, either from
+ // the sorted buffer or by merging the spilled runs
+ class GroupIterator {
+   java.util.PriorityQueue<RunReader> heap = null;
+   int pos = 0;
+   String key;
+   Vector<UserActionProfile> users;
+
+   GroupIterator() throws IOException {
+     if(runs.size() > 0) {
+       if(buffer.size() > 0)
+         spill();
+       heap = new java.util.PriorityQueue<RunReader>(runs.size(), new Comparator<RunReader>() {
+         public int compare(RunReader a, RunReader b) {
+           int cmp = a.current.key.compareTo(b.current.key);
+           return cmp != 0 ? cmp : a.run - b.run;
+         }
+       });
+       for(int r = 0; r < runs.size(); r++) {
+         RunReader reader = new RunReader(runs.get(r), r);
+         if(reader.current != null)
+           heap.add(reader);
+       }
+     }
+     else Collections.sort(buffer, RECORD_ORDER);
+   }
+
+   boolean hasNext() throws IOException {
+     if(heap == null) {
+       if(pos >= buffer.size())
+         return false;
+       key = buffer.get(pos).key;
+       users = new Vector<UserActionProfile>();
+       while(pos < buffer.size() && buffer.get(pos).key.equals(key)) {
+         users.addElement(buffer.get(pos).user);
+         // release the record, the group holds the profile now
+         buffer.set(pos, null);
+         pos++;
+       }
+       return true;
+     }
+     if(heap.isEmpty())
+       return false;
+     key = heap.peek().current.key;
+     users = new Vector<UserActionProfile>();
+     while(!heap.isEmpty() && heap.peek().current.key.equals(key)) {
+       RunReader reader = heap.poll();
+       users.addElement(reader.current.user);
+       reader.advance();
+       if(reader.current != null)
+         heap.add(reader);
+     }
+     return true;
+   }
+
+   String nextKey() {
+     return key;
+   }
+
+   Vector<UserActionProfile> nextUsers() {
+     return users;
+   }
+ }
+
+ // Iterates over the user pairs in order with their evidence, either
+ // from the table or by merging the spilled runs of it
+ class PairIterator {
+   java.util.PriorityQueue<PairRunReader> heap = null;
+   UserPairIDs[] sorted;
+   int pos = 0;
+   UserPairIDs pair;
+   PairEvidence evidence;
+
+   PairIterator() throws IOException {
+     if(tableRuns.size() > 0) {
+       if(table.size() > 0)
+         spillTable();
+       heap = new java.util.PriorityQueue<PairRunReader>(tableRuns.size(),
+           new Comparator<PairRunReader>() {
+         public int compare(PairRunReader a, PairRunReader b) {
+           return a.pair.compareTo(b.pair);
+         }
+       });
+       for(File run : tableRuns) {
+         PairRunReader reader = new PairRunReader(run);
+         if(reader.pair != null)
+           heap.add(reader);
+       }
+     }
+     else {
+       sorted = table.keySet().toArray(new UserPairIDs[table.size()]);
+       Arrays.sort(sorted);
+     }
+   }
+
+   boolean hasNext() throws IOException {
+     if(heap == null) {
+       if(pos >= sorted.length)
+         return false;
+       pair = sorted[pos++];
+       evidence = table.get(pair);
+       return true;
+     }
+     if(heap.isEmpty())
+       return false;
+     // the evidence of a pair may be in several runs
+     pair = heap.peek().pair;
+     evidence = new PairEvidence();
+     while(!heap.isEmpty() && heap.peek().pair.equals(pair)) {
+       PairRunReader reader = heap.poll();
+       evidence.merge(reader.evidence);
+       reader.advance();
+       if(reader.pair != null)
+         heap.add(reader);
+     }
+     return true;
+   }
+
+   UserPairIDs nextPair() {
+     return pair;
+   }
+
+   PairEvidence nextEvidence() {
+     return evidence;
+   }
+ }
+
+ // Write the decisions of all pairs, sorted by user pair, or the
+ // adjacency lists of the users with ippp.adjacency
+ void writeOutput(File output) throws IOException {
+   PairIterator pairs = new PairIterator();
+   final BufferedWriter writer = new BufferedWriter(new FileWriter(output));
+   if(PairPrune.adjacency) {
+     try {
+       writeAdjacency(pairs, writer);
+     } finally {
+       writer.close();
+     }
+     return;
+   }
+   OutputCollector<NullWritable, Text> collector =
+       new OutputCollector<NullWritable, Text>() {
+     public void collect(NullWritable key, Text value) throws IOException {
+       writer.write(value.toString());
+       writer.newLine();
+     }
+   };
+   int numPairs = 0;
+   try {
+     while(pairs.hasNext()) {
+       PairEvidence evidence = pairs.nextEvidence();
+       String audit = PairEvidence.auditIPs > 0 ? evidence.getIPs() : null;
+       PairPrune.emitDecision(pairs.nextPair(), evidence.getSimL(),
+           evidence.getNumSimS(), PairPrune.ipNumBar, audit, collector);
+       numPairs++;
+     }
+   } finally {
+     writer.close();
+   }
+   sLogger.info("user pairs judged: " + numPairs);
+ }
+
+ // Write "uid\tn1:type1,n2:type2,..." lines as PairPrune does with
+ // ippp.adjacency. The lists hold the decided pairs only, and are kept
+ // in memory.
+ void writeAdjacency(PairIterator pairs, BufferedWriter writer) throws IOException {
+   TreeMap<String, TreeMap<String, String>> lists =
+       new TreeMap<String, TreeMap<String, String>>();
+   while(pairs.hasNext()) {
+     UserPairIDs pair = pairs.nextPair();
+     PairEvidence evidence = pairs.nextEvidence();
+     String type = PairPrune.decision(evidence.getSimL(), evidence.getNumSimS(),
+         PairPrune.ipNumBar);
+     if(type == null)
+       continue;
+     addNeighbour(lists, pair.getUID1(), pair.getUID2(), type);
+     if(PairPrune.symmetric)
+       addNeighbour(lists, pair.getUID2(), pair.getUID1(), type);
+   }
+   for(Map.Entry<String, TreeMap<String, String>> e : lists.entrySet()) {
+     writer.write(e.getKey() + "\t" + PairPrune.adjacencyList(e.getValue()));
+     writer.newLine();
+   }
+   sLogger.info("adjacency lists written: " + lists.size());
+ }
+
+ static void addNeighbour(TreeMap<String, TreeMap<String, String>> lists,
+     String uid, String neighbour, String type) {
+   TreeMap<String, String> list = lists.get(uid);
+   if(list == null) {
+     list = new TreeMap<String, String>();
+     lists.put(uid, list);
+   }
+   list.put(neighbour, type);
+ }
+
+ public int run(String[] args) throws Exception {
+   if (args.length < 2) {
+     System.err.println(
+         "Not enough arguments!\nRun as:\n"
+         + "hadoop jar PairSim.jar LocalEngine [options] "
+         + "INPUT OUTPUT_FILE\n\n"
+
+         + "Available options are as below:\n"
+         + "the ipps.* options of PairSim and the ippp.* options of "
+         + "PairPrune, including ippp.symmetric and ippp.adjacency\n"
+         + "ipl.threads\tnumber of threads that process ip groups "
+         + "(default: number of cores)\n"
+         + "ipl.memoryMB\tmemory for buffered input records, and for the "
+         + "evidence of the similar pairs, before they are spilled to disk "
+         + "(default 256); the adjacency lists of ippp.adjacency are kept in "
+         + "memory\n"
+         + "ipl.tmpDir\tdirectory of the spilled runs\n\n"
+
+         + "INPUT is a local file or directory, OUTPUT_FILE a local file\n"
+         + "Input format: uid\tip\ttimevector\n"
+         + "timevector format: t1,t2,t3,...\n"
+      );
+     return 1;
+   }
+
+   Configuration configuration = getConf();
+   JobConf conf = new JobConf(configuration, LocalEngine.class);
+   threads = conf.getInt("ipl.threads", Runtime.getRuntime().availableProcessors());
+   memoryMB = conf.getInt("ipl.memoryMB", 256);
+   tmpDir = new File(conf.get("ipl.tmpDir", System.getProperty("java.io.tmpdir")));
+   PairPrune.loadParameters(conf);
+
+   PairSimMapper mapper = new PairSimMapper();
+   mapper.configure(conf);
+   readInput(new File(args[0]), mapper);
+   processGroups(conf);
+   writeOutput(new File(args[1]));
+
+   for(File run : runs)
+     run.delete();
+   for(File run : tableRuns)
+     run.delete();
+   return 0;
+ }
+
+ public static void main(String[] args) throws Exception {
+   // Let ToolRunner handle generic command-line options
+   int res = ToolRunner.run(new Configuration(), new LocalEngine(), args);
+   System.exit(res);
+ }
+}
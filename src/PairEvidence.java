@@ -0,0 +1,119 @@
+import java.io.*;
+import java.util.*;
+
+import org.apache.hadoop.io.*;
+
+/*
+ * Pair evidence is the partial aggregate of the similarities of one user
+ * pair over several ip addresses, as needed by PairPrune: whether any
+ * long TV pair is similar enough (iSimL) and on how many ip addresses
+ * the short TV pairs are similar enough (numSimS). Evidence from
+ * different ip addresses is merged by or-ing the flags and adding the
+ * counts, so it can be aggregated in any order, e.g. by a combiner.
+ *
+ * For auditing, the evidence can also carry the ip addresses that
+ * contributed to it. Only the auditIPs smallest ones (in string order)
+ * are kept, so the set stays bounded and does not depend on the merge
+ * order.
+ */
+
+public class PairEvidence implements Writable {
+  boolean iSimL;
+  int numSimS;
+  TreeSet<String> ips;
+
+  // the maximum number of contributing ip addresses kept (0 for none)
+  public static int auditIPs = 0;
+
+  public PairEvidence() {
+    this.iSimL = false;
+    this.numSimS = 0;
+    this.ips = new TreeSet<String>();
+  }
+
+  public PairEvidence(boolean b, int n) {
+    this.iSimL = b;
+    this.numSimS = n;
+    this.ips = new TreeSet<String>();
+  }
+
+  // The evidence of a single ip address, judged with the PairPrune
+  // thresholds for long and short TVs
+  public PairEvidence(SimMetric sim, double simBarL, double simBarS) {
+    this.ips = new TreeSet<String>();
+    set(sim.getSim(), sim.getIP(), sim.getUserType(), simBarL, simBarS);
+  }
+
+  // Reset to the evidence of a single ip address, so that a mapper can
+  // reuse the object for every record; ip is only read when auditing
+  public void set(double sim, String ip, boolean isLazy,
+      double simBarL, double simBarS) {
+    this.iSimL = sim >= simBarL && isLazy == false;
+    this.numSimS = (sim >= simBarS && isLazy == true) ? 1 : 0;
+    this.ips.clear();
+    if(auditIPs > 0 && (this.iSimL || this.numSimS > 0))
+      this.ips.add(ip);
+  }
+
+  public void merge(PairEvidence other) {
+    this.iSimL = this.iSimL || other.iSimL;
+    this.numSimS += other.numSimS;
+    if(auditIPs > 0) {
+      this.ips.addAll(other.ips);
+      while(this.ips.size() > auditIPs)
+        this.ips.pollLast();
+    }
+  }
+
+  public void write(DataOutput out) throws IOException {
+    out.writeBoolean(this.iSimL);
+    WritableUtils.writeVInt(out, this.numSimS);
+    WritableUtils.writeVInt(out, this.ips.size());
+    for(String ip : this.ips)
+      Text.writeString(out, ip);
+  }
+
+  // The set is rebuilt on every call, since Hadoop reuses the object
+  public void readFields(DataInput in) throws IOException {
+    this.iSimL = in.readBoolean();
+    this.numSimS = WritableUtils.readVInt(in);
+    int numIPs = WritableUtils.readVInt(in);
+    this.ips = new TreeSet<String>();
+    for(int i = 0; i < numIPs; i++)
+      this.ips.add(Text.readString(in));
+  }
+
+  public String toString() {
+    StringBuilder res = new StringBuilder();
+    char delim = ',';
+    if(this.iSimL)
+      res.append('T');
+    else res.append('F');
+    res.append(delim);
+    res.append(this.numSimS);
+    for(String ip : this.ips) {
+      res.append(delim);
+      res.append(ip);
+    }
+    return res.toString();
+  }
+
+  public boolean getSimL() {
+    return this.iSimL;
+  }
+
+  public int getNumSimS() {
+    return this.numSimS;
+  }
+
+  // the contributing ip addresses joined by commas
+  public String getIPs() {
+    StringBuilder res = new StringBuilder();
+    for(String ip : this.ips) {
+      if(res.length() > 0)
+        res.append(',');
+      res.append(ip);
+    }
+    return res.toString();
+  }
+}
@@ -0,0 +1,117 @@
+import java.io.*;
+import java.util.*;
+
+import org.apache.hadoop.io.*;
+
+/*
+ * PairKey is a user pair of dictionary encoded ids (see UserDictionary)
+ * packed into one long, the first id in the high 32 bits. It is the
+ * shuffle key of PairPrune with ippp.dictionary: it is serialized as 8
+ * bytes, and the sort compares them with a raw comparator instead of
+ * deserializing and comparing two strings per comparison.
+ */
+
+public class PairKey implements WritableComparable<PairKey> {
+  long key;
+
+  // Used by Hadoop to instantiate the key before readFields
+  public PairKey() {
+    this.key = 0;
+  }
+
+  public PairKey(int id1, int id2) {
+    set(id1, id2);
+  }
+
+  // Reset the pair, so that a mapper can reuse it for every record
+  public void set(int id1, int id2) {
+    this.key = ((long) id1 << 32) | (id2 & 0xffffffffL);
+  }
+
+  public int getID1() {
+    return (int) (key >>> 32);
+  }
+
+  public int getID2() {
+    return (int) key;
+  }
+
+  public void write(DataOutput out) throws IOException {
+    out.writeLong(key);
+  }
+
+  public void readFields(DataInput in) throws IOException {
+    key = in.readLong();
+  }
+
+  // ids are not negative, so the order of the longs is the order of
+  // (id1, id2)
+  public int compareTo(PairKey other) {
+    return key < other.key ? -1 : (key == other.key ? 0 : 1);
+  }
+
+  public boolean equals(Object o) {
+    if(!(o instanceof PairKey))
+      return false;
+    return key == ((PairKey) o).key;
+  }
+
+  public int hashCode() {
+    return (int) (key ^ (key >>> 32)) * 0x9E3779B1;
+  }
+
+  public String toString() {
+    return getID1() + "," + getID2();
+  }
+
+  // Parse the dictionary encoded id in s[start, end)
+  public static int parseID(String s, int start, int end) throws IOException {
+    if(start >= end || end - start > 10)
+      throw new IOException("not a dictionary encoded id: " + s.substring(start, end));
+    long id = 0;
+    for(int k = start; k < end; k++) {
+      char c = s.charAt(k);
+      if(c < '0' || c > '9')
+        throw new IOException("not a dictionary encoded id: " + s.substring(start, end));
+      id = id * 10 + (c - '0');
+    }
+    if(id > Integer.MAX_VALUE)
+      throw new IOException("dictionary encoded id out of range: " + id);
+    return (int) id;
+  }
+
+  // Parse the dictionary encoded id in the UTF-8 bytes[start, end)
+  public static int parseID(byte[] bytes, int start, int end) throws IOException {
+    if(start >= end || end - start > 10)
+      throw new IOException("not a dictionary encoded id: "
+          + Text.decode(bytes, start, end - start));
+    long id = 0;
+    for(int k = start; k < end; k++) {
+      int digit = bytes[k] - '0';
+      if(digit < 0 || digit > 9)
+        throw new IOException("not a dictionary encoded id: "
+            + Text.decode(bytes, start, end - start));
+      id = id * 10 + digit;
+    }
+    if(id > Integer.MAX_VALUE)
+      throw new IOException("dictionary encoded id out of range: " + id);
+    return (int) id;
+  }
+
+  // Compares the serialized keys without deserializing them
+  public static class Comparator extends WritableComparator {
+    public Comparator() {
+      super(PairKey.class);
+    }
+
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+      long k1 = readLong(b1, s1);
+      long k2 = readLong(b2, s2);
+      return k1 < k2 ? -1 : (k1 == k2 ? 0 : 1);
+    }
+  }
+
+  static {
+    WritableComparator.define(PairKey.class, new Comparator());
+  }
+}
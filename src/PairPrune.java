@@ -28,6 +28,12 @@ import org.apache.log4j.Logger;
  * consistently happen on many ip addresses, this is likely to be a 
  * synchronized attack or campaign over the Internet. This type of attack
  * is more advanced.
+ *
+ * The evidence of a pair is merged over both orientations, and every
+ * pair is written once with the smaller uid first. ippp.symmetric also
+ * writes the symmetric pairs, and ippp.adjacency writes the neighbours
+ * of a user on one line instead: every edge is listed once, under its
+ * smaller uid, or under both uids with ippp.symmetric.
  */
 
 public class PairPrune extends Configured implements Tool {
@@ -47,91 +53,453 @@ public class PairPrune extends Configured implements Tool {
  // number of reducers
  public static int reducers = 3000;
 
+ // write every pair in both orientations instead of once
+ public static boolean symmetric = false;
+
+ // write the pairs as the adjacency list of every user
+ public static boolean adjacency = false;
+
+
+ // load the parameters of the map, combine and reduce tasks
+ static void loadParameters(JobConf conf) {
+   tvSimBarL = conf.getFloat("ippp.tvSimBarL", 0.7f);
+   tvSimBarS = conf.getFloat("ippp.tvSimBarS", 0.6f);
+   ipNumBar = conf.getInt("ippp.ipNumBar", 4);
+   PairEvidence.auditIPs = conf.getInt("ippp.auditIPs", 0);
+   symmetric = conf.getBoolean("ippp.symmetric", false);
+   adjacency = conf.getBoolean("ippp.adjacency", false);
+ }
 
  public static class Map
    extends org.apache.hadoop.mapred.MapReduceBase
-   implements Mapper<LongWritable, Text, Text, Text> {
+   implements Mapper<LongWritable, Text, UserPairIDs, PairEvidence> {
+
+      public void configure(JobConf conf) {
+        loadParameters(conf);
+      }
 
-      // map users to reducers based on user ids of each pair
+      // Reused across map calls; collect() serializes them right away
+      UserPairIDs pair = new UserPairIDs();
+      PairEvidence evidence = new PairEvidence();
+      int[] commas = new int[4];
+
+      // map users to reducers based on user ids of each pair; only the
+      // evidence that PairPrune.Reduce needs is kept from the similarity.
+      // The bytes of the line "uid1,uid2,sim,ip,T|F" are cut at their
+      // commas directly; only the uids are decoded, and the ip only when
+      // it is audited. PairSim orients a pair by the order of the users
+      // in a group, so the pair is put in uid order to merge the
+      // evidence of both orientations.
       public void map(
         LongWritable key,
         Text value,
-        OutputCollector<Text, Text> output,
+        OutputCollector<UserPairIDs, PairEvidence> output,
         Reporter reporter
       ) throws IOException {
 
-        String line = value.toString();
-	UserPair up = new UserPair(line);
+        byte[] line = value.getBytes();
+        cutLine(value, commas);
+        pair.set(Text.decode(line, 0, commas[0]),
+            Text.decode(line, commas[0] + 1, commas[1] - commas[0] - 1));
+        pair.canonicalize();
+        setEvidence(evidence, line, commas);
+        output.collect(pair, evidence);
 
-        output.collect(new Text(up.getUserIDs().toString()), new Text(up.getSimMetric().toString()));
+        reporter.incrCounter("IPPP Stats", "Num Entries", 1);
+        reporter.progress();
+      }
+ }
+
+ // Mapper for PairSim lines of dictionary encoded users (ippp.dictionary)
+ // that keys the evidence by the packed pair
+ public static class EncodedMap
+   extends org.apache.hadoop.mapred.MapReduceBase
+   implements Mapper<LongWritable, Text, PairKey, PairEvidence> {
+
+      public void configure(JobConf conf) {
+        loadParameters(conf);
+      }
+
+      // Reused across map calls; collect() serializes them right away
+      PairKey pair = new PairKey();
+      PairEvidence evidence = new PairEvidence();
+      int[] commas = new int[4];
+
+      public void map(
+        LongWritable key,
+        Text value,
+        OutputCollector<PairKey, PairEvidence> output,
+        Reporter reporter
+      ) throws IOException {
+
+        byte[] line = value.getBytes();
+        cutLine(value, commas);
+        setCanonical(pair, PairKey.parseID(line, 0, commas[0]),
+            PairKey.parseID(line, commas[0] + 1, commas[1]));
+        setEvidence(evidence, line, commas);
+        output.collect(pair, evidence);
 
         reporter.incrCounter("IPPP Stats", "Num Entries", 1);
         reporter.progress();
       }
  }
 
+ // Set a packed pair with the smaller id first, so that both
+ // orientations of a pair are the same key
+ static void setCanonical(PairKey pair, int id1, int id2) {
+   pair.set(Math.min(id1, id2), Math.max(id1, id2));
+ }
+
+ // Find the four commas of a PairSim line "uid1,uid2,sim,ip,T|F" in its
+ // UTF-8 bytes; a comma is never part of a multi-byte character
+ static void cutLine(Text line, int[] commas) throws IOException {
+   byte[] bytes = line.getBytes();
+   int length = line.getLength();
+   int k = 0;
+   for(int c = 0; c < length && k < 4; c++) {
+     if(bytes[c] == ',')
+       commas[k++] = c;
+   }
+   if(k < 4 || commas[3] + 1 >= length)
+     throw new IOException("malformed user pair: " + line);
+ }
+
+ // Keep the evidence that PairPrune.Reduce needs from the bytes of a cut
+ // PairSim line; the ip is only decoded when it is audited
+ static void setEvidence(PairEvidence evidence, byte[] line, int[] commas)
+     throws IOException {
+   double sim = VectorUtils.parseDouble(line, commas[1] + 1, commas[2]);
+   String ip = PairEvidence.auditIPs > 0
+       ? Text.decode(line, commas[2] + 1, commas[3] - commas[2] - 1) : null;
+   evidence.set(sim, ip, line[commas[3] + 1] == 'T', tvSimBarL, tvSimBarS);
+ }
+
+ // Mapper for the SequenceFile output of PairSim (ippp.seqInput). The
+ // records are already keyed by the user pair, so nothing is parsed.
+ public static class SeqMap
+   extends org.apache.hadoop.mapred.MapReduceBase
+   implements Mapper<UserPairIDs, SimMetric, UserPairIDs, PairEvidence> {
+
+      public void configure(JobConf conf) {
+        loadParameters(conf);
+      }
+
+      // Reused across map calls; collect() serializes it right away
+      PairEvidence evidence = new PairEvidence();
+
+      public void map(
+        UserPairIDs key,
+        SimMetric value,
+        OutputCollector<UserPairIDs, PairEvidence> output,
+        Reporter reporter
+      ) throws IOException {
+
+        evidence.set(value.getSim(), value.getIP(), value.getUserType(),
+            tvSimBarL, tvSimBarS);
+        key.canonicalize();
+        output.collect(key, evidence);
+
+        reporter.incrCounter("IPPP Stats", "Num Entries", 1);
+        reporter.progress();
+      }
+ }
+
+ // Mapper for the SequenceFile output of PairSim on dictionary encoded
+ // users (ippp.seqInput and ippp.dictionary)
+ public static class EncodedSeqMap
+   extends org.apache.hadoop.mapred.MapReduceBase
+   implements Mapper<UserPairIDs, SimMetric, PairKey, PairEvidence> {
+
+      public void configure(JobConf conf) {
+        loadParameters(conf);
+      }
+
+      // Reused across map calls; collect() serializes them right away
+      PairKey pair = new PairKey();
+      PairEvidence evidence = new PairEvidence();
+
+      public void map(
+        UserPairIDs key,
+        SimMetric value,
+        OutputCollector<PairKey, PairEvidence> output,
+        Reporter reporter
+      ) throws IOException {
+
+        String uid1 = key.getUID1();
+        String uid2 = key.getUID2();
+        setCanonical(pair, PairKey.parseID(uid1, 0, uid1.length()),
+            PairKey.parseID(uid2, 0, uid2.length()));
+        evidence.set(value.getSim(), value.getIP(), value.getUserType(),
+            tvSimBarL, tvSimBarS);
+        output.collect(pair, evidence);
+
+        reporter.incrCounter("IPPP Stats", "Num Entries", 1);
+        reporter.progress();
+      }
+ }
+
+ // Combiner that merges the evidence of a user pair before the shuffle,
+ // so a pair that is similar on many ips is shuffled as one record per
+ // map task
+ public static class Combine
+    extends MapReduceBase implements Reducer<UserPairIDs, PairEvidence, UserPairIDs, PairEvidence> {
+
+    public void configure(JobConf conf) {
+      loadParameters(conf);
+    }
+
+    public void reduce(
+      UserPairIDs key,
+      Iterator<PairEvidence> values,
+      OutputCollector<UserPairIDs, PairEvidence> output,
+      Reporter reporter
+    ) throws IOException {
+      PairEvidence total = new PairEvidence();
+      while(values.hasNext())
+        total.merge(values.next());
+      output.collect(key, total);
+    }
+ }
+
+ // Combiner for the packed pairs of dictionary encoded users
+ public static class EncodedCombine
+    extends MapReduceBase implements Reducer<PairKey, PairEvidence, PairKey, PairEvidence> {
+
+    public void configure(JobConf conf) {
+      loadParameters(conf);
+    }
+
+    public void reduce(
+      PairKey key,
+      Iterator<PairEvidence> values,
+      OutputCollector<PairKey, PairEvidence> output,
+      Reporter reporter
+    ) throws IOException {
+      PairEvidence total = new PairEvidence();
+      while(values.hasNext())
+        total.merge(values.next());
+      output.collect(key, total);
+    }
+ }
+
  public static class Reduce
-    extends MapReduceBase implements Reducer<Text, Text, NullWritable, Text> {
+    extends MapReduceBase implements Reducer<UserPairIDs, PairEvidence, NullWritable, Text> {
 
     public void configure(JobConf conf) {
       // load parameters
-      tvSimBarL = conf.getFloat("ippp.tvSimBarL", 0.7f);
-      tvSimBarS = conf.getFloat("ippp.tvSimBarS", 0.6f);
-      ipNumBar = conf.getInt("ippp.ipNumBar", 4);
+      loadParameters(conf);
+
+      // the parameters are logged once per task
+      sLogger.info("tvSimBarL: " + tvSimBarL + ", tvSimBarS: " + tvSimBarS
+          + ", ipNumBar: " + ipNumBar);
     }               
 
     // in the reduce phase we cluster users from the same ip address (subnet)   
     public void reduce(
-      Text key,
-      Iterator<Text> values,
+      UserPairIDs key,
+      Iterator<PairEvidence> values,
       OutputCollector<NullWritable, Text> output,
       Reporter reporter
     ) throws IOException {
+      judge(key, values, output, reporter);
+    }   
+ }
 
-      // check the paremeters
-      sLogger.info("tvSimBarL: " + tvSimBarL);
-      sLogger.info("tvSimBarS: " + tvSimBarS);
-      sLogger.info("ipNumBar: " + ipNumBar);
+ // Reducer for the packed pairs of dictionary encoded users; the ids
+ // are written as numbers and decoded by UserDictionary
+ public static class EncodedReduce
+    extends MapReduceBase implements Reducer<PairKey, PairEvidence, NullWritable, Text> {
 
-      UserPairIDs upis = new UserPairIDs(key.toString());
-      boolean iSimL = false; // similar active users with long TVs
-      int numSimS = 0; // number of similar ips that lazy users with short TVs have     
-      
-      while(values.hasNext()) {
-        SimMetric curSim= new SimMetric(values.next().toString());
-	if(curSim.getSim() >= tvSimBarL && curSim.getUserType() == false) 
-	  iSimL = true;
-        if(curSim.getSim() >= tvSimBarS && curSim.getUserType() == true)
-          numSimS++;
-      }
-      String delim = new String("\t");
-      if( (iSimL == true) && (numSimS >= ipNumBar) ) {
- 	// have both at least one similar long TV and enough short TVs
-	String outStr = upis.getUID1() + delim + upis.getUID2() + delim + "B";
-        output.collect(NullWritable.get(), new Text(outStr));
-	// Generate the symmetric pair
-	String outStrSym = upis.getUID2() + delim + upis.getUID1() + delim + "B";
-        output.collect(NullWritable.get(), new Text(outStr));
+    public void configure(JobConf conf) {
+      loadParameters(conf);
+    }
+
+    public void reduce(
+      PairKey key,
+      Iterator<PairEvidence> values,
+      OutputCollector<NullWritable, Text> output,
+      Reporter reporter
+    ) throws IOException {
+      UserPairIDs upis = new UserPairIDs(Integer.toString(key.getID1()),
+          Integer.toString(key.getID2()));
+      judge(upis, values, output, reporter);
+    }
+ }
+
+ // Aggregate the evidence of a user pair and emit the decision
+ static void judge(UserPairIDs upis, Iterator<PairEvidence> values,
+     OutputCollector<NullWritable, Text> output, Reporter reporter) throws IOException {
+   PairEvidence total = new PairEvidence();
+   while(values.hasNext())
+     total.merge(values.next());
+
+   boolean iSimL = total.getSimL(); // similar active users with long TVs
+   int numSimS = total.getNumSimS(); // number of similar ips that lazy users with short TVs have     
+   String audit = PairEvidence.auditIPs > 0 ? total.getIPs() : null;
+   emitDecision(upis, iSimL, numSimS, ipNumBar, audit, output);
+
+   reporter.incrCounter("IPPP Stats", "Pairs judged", 1);
+   String type = decision(iSimL, numSimS, ipNumBar);
+   if(type != null)
+     reporter.incrCounter("IPPP Stats", type + " pairs", 1);
+   reporter.incrCounter("IPPP Similar short TV ips", PairSim.decade(numSimS, ""), 1);
+ }
+
+  
+ // The decision for a user pair from its aggregated evidence: B for
+ // both similar long TVs and enough similar short TVs, L or S for only
+ // one of them, and null otherwise. Enough short TVs are at least
+ // ipNumBar ips, which is ippp.ipNumBar except in PairSimSweep.
+ static String decision(boolean iSimL, int numSimS, int ipNumBar) {
+   if( (iSimL == true) && (numSimS >= ipNumBar) )
+     return "B"; // have both at least one similar long TV and enough short TVs
+   else if (iSimL == true)
+     return "L"; // only have similar long TVs
+   else if (numSimS >= ipNumBar)
+     return "S"; // only have many similar short TVs
+   return null;
+ }
+
+ // Emit the decision for a user pair, if any. The pair is written once,
+ // or also as its symmetric pair with ippp.symmetric. If audit is not
+ // null, the contributing ips are appended to the line.
+ static void emitDecision(UserPairIDs upis, boolean iSimL, int numSimS,
+     int ipNumBar, String audit, OutputCollector<NullWritable, Text> output)
+     throws IOException {
+   String type = decision(iSimL, numSimS, ipNumBar);
+   if(type == null)
+     return;
+   emitLine(upis, audit == null ? type : type + "\t" + audit, output);
+ }
+
+ // Emit "uid1\tuid2\tN" for a pair that no longer qualifies, in the
+ // same orientations as its decision
+ static void emitRetraction(UserPairIDs upis,
+     OutputCollector<NullWritable, Text> output) throws IOException {
+   emitLine(upis, "N", output);
+ }
+
+ static void emitLine(UserPairIDs upis, String rest,
+     OutputCollector<NullWritable, Text> output) throws IOException {
+   StringBuilder line = lineBuilder.get();
+   Text text = lineText.get();
+   char delim = '\t';
+   line.setLength(0);
+   line.append(upis.getUID1()).append(delim).append(upis.getUID2())
+       .append(delim).append(rest);
+   text.set(line.toString());
+   output.collect(NullWritable.get(), text);
+   // Generate the symmetric pair
+   if(symmetric) {
+     line.setLength(0);
+     line.append(upis.getUID2()).append(delim).append(upis.getUID1())
+         .append(delim).append(rest);
+     text.set(line.toString());
+     output.collect(NullWritable.get(), text);
+   }
+ }
+
+ // The line of emitLine is reused for every line of a thread, like the
+ // values of a Hadoop task
+ static final ThreadLocal<StringBuilder> lineBuilder = new ThreadLocal<StringBuilder>() {
+   protected StringBuilder initialValue() {
+     return new StringBuilder();
+   }
+ };
+ static final ThreadLocal<Text> lineText = new ThreadLocal<Text>() {
+   protected Text initialValue() {
+     return new Text();
+   }
+ };
+
+ // Adjacency lists: the edges of a PairPrune line "uid1\tuid2\ttype",
+ // keyed by the first user, and by the second one with ippp.symmetric
+ public static class AdjacencyMap
+   extends org.apache.hadoop.mapred.MapReduceBase
+   implements Mapper<LongWritable, Text, Text, Text> {
+
+      public void configure(JobConf conf) {
+        loadParameters(conf);
       }
-      else if (iSimL == true) { // only have similar long TVs
-        String outStr = upis.getUID1() + delim + upis.getUID2() + delim + "L";
-        output.collect(NullWritable.get(), new Text(outStr));
-        // Generate the symmetric pair
-        String outStrSym = upis.getUID2() + delim + upis.getUID1() + delim + "L";
-        output.collect(NullWritable.get(), new Text(outStr));
+
+      // Reused across map calls; collect() serializes them right away
+      Text outkey = new Text();
+      Text outvalue = new Text();
+
+      public void map(
+        LongWritable key,
+        Text value,
+        OutputCollector<Text, Text> output,
+        Reporter reporter
+      ) throws IOException {
+        String[] parts = value.toString().split("\t");
+        if(parts.length < 3)
+          throw new IOException("malformed PairPrune line: " + value);
+        outkey.set(parts[0]);
+        outvalue.set(parts[1] + "\t" + parts[2]);
+        output.collect(outkey, outvalue);
+        if(symmetric) {
+          outkey.set(parts[1]);
+          outvalue.set(parts[0] + "\t" + parts[2]);
+          output.collect(outkey, outvalue);
+        }
       }
-      else if (numSimS >= ipNumBar) { // only have many similar short TVs
-        String outStr = upis.getUID1() + delim + upis.getUID2() + delim + "S";
-        output.collect(NullWritable.get(), new Text(outStr));
-        // Generate the symmetric pair
-        String outStrSym = upis.getUID2() + delim + upis.getUID1() + delim + "S";
-        output.collect(NullWritable.get(), new Text(outStr));
+ }
+
+ // Writes "uid\tn1:type1,n2:type2,..." with the neighbours in uid order
+ public static class AdjacencyReduce
+    extends MapReduceBase implements Reducer<Text, Text, Text, Text> {
+
+    public void reduce(
+      Text key,
+      Iterator<Text> values,
+      OutputCollector<Text, Text> output,
+      Reporter reporter
+    ) throws IOException {
+      TreeMap<String, String> neighbours = new TreeMap<String, String>();
+      while(values.hasNext()) {
+        String value = values.next().toString();
+        int tab = value.indexOf('\t');
+        neighbours.put(value.substring(0, tab), value.substring(tab + 1));
       }
-      else;
-    }   
+      output.collect(key, new Text(adjacencyList(neighbours)));
+      reporter.incrCounter("IPPP Stats", "Adjacency lists", 1);
+    }
+ }
+
+ // "n1:type1,n2:type2,..." for the neighbours of a user and their edge
+ // types
+ static String adjacencyList(SortedMap<String, String> neighbours) {
+   StringBuilder res = new StringBuilder();
+   for(java.util.Map.Entry<String, String> e : neighbours.entrySet()) {
+     if(res.length() > 0)
+       res.append(',');
+     res.append(e.getKey());
+     res.append(':');
+     res.append(e.getValue());
+   }
+   return res.toString();
+ }
+
+ // Turn the PairPrune lines in inputDir into adjacency lists
+ static void adjacency(Configuration configuration, Path inputDir,
+     Path outputDir) throws IOException {
+   JobConf conf = new JobConf(configuration, PairPrune.class);
+   conf.setJobName("ip_action_sim_prum_adjacency");
+   conf.setMapOutputKeyClass(Text.class);
+   conf.setMapOutputValueClass(Text.class);
+   conf.setOutputKeyClass(Text.class);
+   conf.setOutputValueClass(Text.class);
+   conf.setMapperClass(AdjacencyMap.class);
+   conf.setReducerClass(AdjacencyReduce.class);
+   conf.setInputFormat(TextInputFormat.class);
+   conf.setOutputFormat(TextOutputFormat.class);
+   conf.setNumReduceTasks(reducers);
+   FileInputFormat.setInputPaths(conf, inputDir);
+   FileOutputFormat.setOutputPath(conf, outputDir);
+   JobClient.runJob(conf);
  }
 
-  
  public int run(String[] args) throws Exception {
    if (args.length < 2) {
      System.err.println(
@@ -144,7 +512,23 @@ public class PairPrune extends Configured implements Tool {
 	 + "IP address for long TVs\n"
          + "ippp.tvSimBarS\tthe minimum simiarity of short TV pairs\n"
 	 + "ippp.ipNumBar\tthe minimum IP addresses that users should match on "
-         + "short TVs\n\n"	
+         + "short TVs\n"
+         + "ippp.seqInput\tread the SequenceFile output of PairSim "
+         + "(ipps.seqOutput) instead of text\n"
+         + "ippp.auditIPs\tappend up to this many contributing ips to each "
+         + "output line (default 0)\n"
+         + "ippp.dictionary\tthe dictionary directory of UserDictionary "
+         + "encode if the users are encoded; pairs are shuffled as packed "
+         + "ids and the output is decoded\n"
+         + "ippp.symmetric\twrite every pair in both orientations "
+         + "(default false)\n"
+         + "ippp.adjacency\twrite \"uid\tn1:B|L|S,n2:B|L|S,...\" lines with "
+         + "the neighbours of a user instead of pairs, without audit ips; "
+         + "every edge is listed once, under its smaller uid (or dictionary "
+         + "id), unless ippp.symmetric lists it under both (default false)\n\n"
+
+         + "Output format: uid1\tuid2\tB|L|S, every pair once with the "
+         + "smaller uid (or dictionary id) first\n"	
      );
      return 1;
    }
@@ -153,13 +537,38 @@ public class PairPrune extends Configured implements Tool {
    JobConf conf = new JobConf(configuration, PairPrune.class);
    conf.setJobName("ip_action_sim_prum");
        
-   conf.setMapOutputKeyClass(Text.class);
-   conf.setMapOutputValueClass(Text.class);
+   // with encoded users the pairs are shuffled as packed ids and the
+   // output is decoded from a temporary directory
+   String dictionary = conf.get("ippp.dictionary");
+   boolean seqInput = conf.getBoolean("ippp.seqInput", false);
+   boolean adjacency = conf.getBoolean("ippp.adjacency", false);
+   Path outputDir = new Path(args[1]);
+   // the pairs are written to outputDir, or to pairsDir for the adjacency
+   // lists, or to encodedDir for decoding
+   Path pairsDir = adjacency ? new Path(args[1] + "_pairs") : outputDir;
+   Path encodedDir = dictionary == null ? pairsDir : new Path(args[1] + "_encoded");
+   // the pairs are written once; the adjacency job lists an edge under
+   // both users if ippp.symmetric is set
+   if(adjacency)
+     conf.setBoolean("ippp.symmetric", false);
+   conf.setMapOutputValueClass(PairEvidence.class);
    conf.setOutputKeyClass(NullWritable.class);
    conf.setOutputValueClass(Text.class);
-   conf.setMapperClass(Map.class);
-   conf.setReducerClass(Reduce.class);
-   conf.setInputFormat(TextInputFormat.class);
+   if(dictionary == null) {
+     conf.setMapOutputKeyClass(UserPairIDs.class);
+     conf.setCombinerClass(Combine.class);
+     conf.setReducerClass(Reduce.class);
+     conf.setMapperClass(seqInput ? SeqMap.class : Map.class);
+   }
+   else {
+     conf.setMapOutputKeyClass(PairKey.class);
+     conf.setCombinerClass(EncodedCombine.class);
+     conf.setReducerClass(EncodedReduce.class);
+     conf.setMapperClass(seqInput ? EncodedSeqMap.class : EncodedMap.class);
+   }
+   if(seqInput)
+     conf.setInputFormat(SequenceFileInputFormat.class);
+   else conf.setInputFormat(TextInputFormat.class);
    conf.setOutputFormat(TextOutputFormat.class);
    conf.setNumReduceTasks(reducers);
 
@@ -169,14 +578,24 @@ public class PairPrune extends Configured implements Tool {
    // clean the output directory
    FileSystem fs = FileSystem.get(conf);
    try {
-     fs.delete(new Path(args[1]),true);     
+     fs.delete(outputDir, true);     
+     fs.delete(pairsDir, true);
+     fs.delete(encodedDir, true);
    } catch (IOException e) {
      System.err.println(e);
    }
    
    // set the output directory
-   FileOutputFormat.setOutputPath(conf, new Path(args[1]));
+   FileOutputFormat.setOutputPath(conf, encodedDir);
    JobClient.runJob(conf);
+   if(dictionary != null) {
+     UserDictionary.decode(configuration, new Path(dictionary), encodedDir, pairsDir);
+     fs.delete(encodedDir, true);
+   }
+   if(adjacency) {
+     adjacency(configuration, pairsDir, outputDir);
+     fs.delete(pairsDir, true);
+   }
    return 0;
  }
 
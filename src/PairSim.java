@@ -1,6 +1,7 @@
 import java.io.IOException;
 import java.util.*;
 import java.io.*;
+import java.util.concurrent.*;
 
 import org.apache.hadoop.fs.*;
 import org.apache.hadoop.conf.*;
@@ -15,7 +16,15 @@ import org.apache.log4j.Logger;
  * PairSim is to compute the pairwise similarity of user actions on each
  * shared ip address where both users have perform actions. 
  *
+ * With ipps.ipv4Prefix or ipps.ipv6Prefix the users are grouped by
+ * subnet instead of by ip (see IPPrefix), and <ip> is the subnet, e.g.
+ * "10.1.2.0/24".
+ *
+ * The slowest groups of the job are written to OUTPUT_DIR_slowips as
+ * "<group>\t<millis>\t<users>\t<pairs compared>\t<pairs emitted>".
+ *
  * Output: "<uid1>,<uid2>,<sim>,<ip>,<isLazy>"
+ * or, with ipps.seqOutput, a SequenceFile of (UserPairIDs, SimMetric)
  */
 
 public class PairSim extends Configured implements Tool {
@@ -39,8 +48,69 @@ public class PairSim extends Configured implements Tool {
  // number of reducers
  public static int reducers = 3000;
 
+ // compare every pair of users on an ip instead of only the candidate
+ // pairs proposed by CandidateIndex (for verification)
+ public static boolean exhaustive = false;
+
+ // number of blocks that the users of a heavy ip are split into
+ public static int hotGrid = 8;
+
+ // number of threads that compare the pairs of a large user group
+ public static int reduceThreads = 1;
+
+ // the minimum group size for which the pairs are compared in parallel
+ public static int threadMinUsers = 1000;
+
+ // emit the pairs of a group in the same order as with one thread
+ public static boolean deterministicOrder = false;
+
+ // the memory for the users of a group, in MB; larger groups are
+ // spilled to a UserStore on local disk and compared block by block
+ public static int userStoreMB = 128;
+
+ // groups of at least this many users get their candidate pairs from
+ // an LSHIndex instead of a CandidateIndex (0 for never); the pairs are
+ // still verified exactly, but some similar pairs may be missed
+ public static int lshMinUsers = 0;
+
+ // the bands and the rows per band of the LSH signatures
+ public static int lshBands = 32;
+ public static int lshRows = 2;
+
+ // the grid step of discretized time points (0 for none); pairs of
+ // users whose time points are all on the grid are compared with the
+ // TimeBitset kernel, which needs a step longer than windowSize/2
+ public static long bitsetGrid = 0;
+
+ // compare the distinct time vectors of a group once and expand the
+ // result to the users that share them
+ public static boolean collapse = true;
+
+ // the minimum share of the users of a group that must have the same
+ // time vector as an earlier user for the group to be collapsed
+ public static float minCollapse = 0.1f;
+
+ // the number of slowest groups of each reduce task that are reported
+ // next to the task output and merged into ipps.slowIPsDir
+ public static int slowIPs = 20;
+
  public static class Reduce
-    extends MapReduceBase implements Reducer<Text, Text, NullWritable, Text> {
+    extends MapReduceBase implements Reducer<Text, UserActionProfile, UserPairIDs, SimMetric> {
+
+    // indices of the pair statistics gathered by compareRows
+    static final int STAT_COMPARED = 0;
+    static final int STAT_SKIPPED = 1;
+    static final int STAT_PRUNED_RANGE = 2;
+    static final int STAT_PRUNED_BOUND = 3;
+    static final int STAT_BITSET = 4;
+    static final int NUM_STATS = 5;
+
+    // the rows and the time points of a tile of the pair loop
+    static final int ROW_TILE = 64;
+    static final int TILE_POINTS = 32768;
+
+    // worker threads for the pair comparison of large groups
+    ExecutorService pool = null;
 
     public void configure(JobConf conf) {
       // load parameters
@@ -48,58 +118,964 @@ public class PairSim extends Configured implements Tool {
       tvLenBar = conf.getInt("ipps.tvLenBar", 5);
       tvSimBarL = conf.getFloat("ipps.tvSimBarL", 0.7f);
       tvSimBarS = conf.getFloat("ipps.tvSimBarS", 0.6f);
+      exhaustive = conf.getBoolean("ipps.exhaustive", false);
+      hotGrid = conf.getInt("ipps.hotGrid", 8);
+      reduceThreads = conf.getInt("ipps.reduceThreads", 1);
+      threadMinUsers = conf.getInt("ipps.threadMinUsers", 1000);
+      deterministicOrder = conf.getBoolean("ipps.deterministicOrder", false);
+      userStoreMB = conf.getInt("ipps.userStoreMB", 128);
+      lshMinUsers = conf.getInt("ipps.lshMinUsers", 0);
+      lshBands = conf.getInt("ipps.lshBands", 32);
+      lshRows = conf.getInt("ipps.lshRows", 2);
+      bitsetGrid = conf.getLong("ipps.bitsetGrid", 0);
+      collapse = conf.getBoolean("ipps.collapse", true);
+      minCollapse = conf.getFloat("ipps.minCollapse", 0.1f);
+      slowIPs = conf.getInt("ipps.slowIPs", 20);
+      slowIPsDir = conf.get("ipps.slowIPsDir");
+      this.conf = conf;
+
+      // the parameters are logged once per task
+      sLogger.info("windowSize: " + windowSize + ", tvLenBar: " + tvLenBar
+          + ", tvSimBarL: " + tvSimBarL + ", tvSimBarS: " + tvSimBarS);
+      if(bitsetGrid > 0 && !TimeBitset.isExact(bitsetGrid, windowSize)) {
+        sLogger.warn("ipps.bitsetGrid " + bitsetGrid + " is not longer than "
+            + "windowSize/2, using the merge kernel");
+        bitsetGrid = 0;
+      }
+
+      if(reduceThreads > 1) {
+        pool = Executors.newFixedThreadPool(reduceThreads, new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            // do not keep the task JVM alive
+            Thread t = new Thread(r, "pairsim-worker");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+      }
     }               
-   
+
+    public void close() throws IOException {
+      sLogger.info("max group size of this task: " + maxGroupSize);
+      if(pool != null)
+        pool.shutdownNow();
+      if(slowIPsDir != null && !slowGroups.isEmpty())
+        writeSlowGroups();
+    }
+
+    // the largest user group seen by this reduce task
+    int maxGroupSize = 0;
+
+    // the pairs compared in the current group
+    long groupCompared = 0;
+
+    // the slowest groups of this task, the fastest of them first
+    java.util.PriorityQueue<SlowGroup> slowGroups =
+        new java.util.PriorityQueue<SlowGroup>();
+    String slowIPsDir = null;
+    JobConf conf = null;
+
+    // The cost of one group, for the report of the slowest groups
+    static class SlowGroup implements Comparable<SlowGroup> {
+      String key;
+      int users;
+      long compared;
+      long emitted;
+      long millis;
+
+      SlowGroup(String key, int users, long compared, long emitted, long millis) {
+        this.key = key;
+        this.users = users;
+        this.compared = compared;
+        this.emitted = emitted;
+        this.millis = millis;
+      }
+
+      public int compareTo(SlowGroup other) {
+        return this.millis < other.millis ? -1 : (this.millis > other.millis ? 1 : 0);
+      }
+
+      public String toString() {
+        return key + "\t" + millis + "\t" + users + "\t" + compared + "\t" + emitted;
+      }
+    }
+
+    // Passes the similar pairs of a group on and counts them by
+    // similarity. Pairs are only collected on the reduce thread.
+    static class GroupOutput implements OutputCollector<UserPairIDs, SimMetric> {
+      OutputCollector<UserPairIDs, SimMetric> output;
+      long emitted = 0;
+      long[] similarities = new long[11];
+
+      GroupOutput(OutputCollector<UserPairIDs, SimMetric> output) {
+        this.output = output;
+      }
+
+      public void collect(UserPairIDs key, SimMetric value) throws IOException {
+        output.collect(key, value);
+        emitted++;
+        similarities[(int) Math.max(0, Math.min(10, Math.floor(value.getSim() * 10)))]++;
+      }
+    }
+
+    public void reduce(
+      Text key,
+      Iterator<UserActionProfile> values,
+      OutputCollector<UserPairIDs, SimMetric> output,
+      Reporter reporter
+    ) throws IOException {
+      reduce(key, values, lshMinUsers, output, reporter);
+    }
+
+    // Find the similar pairs of a group, proposing the pairs of the
+    // groups of at least lshMinUsers users with LSH (off if 0)
     public void reduce(
       Text key,
-      Iterator<Text> values,
-      OutputCollector<NullWritable, Text> output,
+      Iterator<UserActionProfile> values,
+      int lshMinUsers,
+      OutputCollector<UserPairIDs, SimMetric> output,
       Reporter reporter
     ) throws IOException {
+      long start = System.nanoTime();
+      groupCompared = 0;
+      GroupOutput groupOutput = new GroupOutput(output);
+      int users = reduceGroup(key, values, lshMinUsers, groupOutput, reporter);
+      long millis = (System.nanoTime() - start) / 1000000;
 
-      // check the paremeters
-      sLogger.info("windowSize: " + windowSize);
+      reporter.incrCounter("IPPS Stats", "Groups", 1);
+      reporter.incrCounter("IPPS Stats", "Pairs emitted", groupOutput.emitted);
+      reporter.incrCounter("IPPS Stats", "Group time ms", millis);
+      reporter.incrCounter("IPPS Group size", decade(users, ""), 1);
+      reporter.incrCounter("IPPS Group time", decade(millis, " ms"), 1);
+      for(int b = 0; b < groupOutput.similarities.length; b++) {
+        if(groupOutput.similarities[b] > 0) {
+          reporter.incrCounter("IPPS Similarity", similarityBucket(b),
+              groupOutput.similarities[b]);
+        }
+      }
 
+      if(slowIPs > 0) {
+        slowGroups.add(new SlowGroup(key.toString(), users, groupCompared,
+            groupOutput.emitted, millis));
+        if(slowGroups.size() > slowIPs)
+          slowGroups.poll();
+      }
+    }
+
+    // Write the slowest groups of the task to a "slowips-r-NNNNN" file in
+    // the work output directory of the task, so the file is committed
+    // with the task output; the driver merges the files of the job
+    // into ipps.slowIPsDir
+    void writeSlowGroups() throws IOException {
+      Path workDir = FileOutputFormat.getWorkOutputPath(conf);
+      if(workDir == null)
+        return;
+      Path path = new Path(workDir, FileOutputFormat.getUniqueName(conf, "slowips"));
+      SlowGroup[] groups = slowGroups.toArray(new SlowGroup[slowGroups.size()]);
+      Arrays.sort(groups, Collections.reverseOrder());
+      FileSystem fs = path.getFileSystem(conf);
+      BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(fs.create(path, true)));
+      try {
+        for(SlowGroup group : groups) {
+          writer.write(group.toString());
+          writer.newLine();
+        }
+      } finally {
+        writer.close();
+      }
+    }
+
+    // Find the similar pairs of one group; returns the number of users
+    int reduceGroup(
+      Text key,
+      Iterator<UserActionProfile> values,
+      int lshMinUsers,
+      OutputCollector<UserPairIDs, SimMetric> output,
+      Reporter reporter
+    ) throws IOException {
       Vector<UserActionProfile> userSet = new Vector<UserActionProfile>();
       String[] keyParts = key.toString().split(",");
       String ip = keyParts[0];
       boolean isLazy = keyParts[1].equals("T");
       int userCount = 0;
 
-      while(values.hasNext()) {
-        UserActionProfile curUser= new UserActionProfile(values.next().toString());
-        userSet.addElement(curUser); // add to the user set
+      // In the subnet mode (ipps.ipv4Prefix, ipps.ipv6Prefix) the group
+      // "subnet,A" holds the users of both types, since a user may have
+      // records from several ips of the subnet
+      boolean isSubnet = keyParts[1].equals("A");
+
+      // A heavy ip is split by PairSimMapper into sub-groups keyed
+      // "ip,T|F,x,y". For x < y the sub-group holds the users of blocks
+      // x and y, and only pairs across the two blocks are compared here;
+      // pairs within a block are compared in the sub-group "x,x". The
+      // users of block x are placed first in userSet.
+      boolean isCross = keyParts.length == 4 && !keyParts[2].equals(keyParts[3]);
+      int blockX = isCross ? Integer.parseInt(keyParts[2]) : -1;
+      Vector<UserActionProfile> blockYSet = new Vector<UserActionProfile>();
+
+      // the users move to a store on disk once they exceed the budget
+      long budget = (long) userStoreMB << 20;
+      long groupBytes = 0;
+      UserStore store = null;
+
+      // the store is closed, and its spill file deleted, when the group
+      // is done or when reading or comparing it fails
+      try {
+        while(values.hasNext()) {
+          // Hadoop reuses the value object, so keep our own copy. The
+          // time vector is freshly allocated by readFields.
+          UserActionProfile value = values.next();
+          UserActionProfile curUser= new UserActionProfile(value.getID(), value.getTimeVector());
+          if(store != null)
+            store.add(curUser.getID(), curUser.getTimeVector());
+          else if(isCross && PairSimMapper.blockOf(curUser.getID(), hotGrid) != blockX)
+            blockYSet.addElement(curUser);
+          else userSet.addElement(curUser); // add to the user set
 
-        userCount++;
-        // report progress
-        if(userCount % 100 == 0)
-          reporter.progress(); 
+          groupBytes += 64 + 2 * curUser.getID().length() + 8 * curUser.getTimeVector().length;
+          if(store == null && groupBytes > budget) {
+            store = new UserStore(budget / 2, isSubnet);
+            for(UserActionProfile user : userSet)
+              store.add(user.getID(), user.getTimeVector());
+            for(UserActionProfile user : blockYSet)
+              store.add(user.getID(), user.getTimeVector());
+            userSet.clear();
+            blockYSet.clear();
+          }
+
+          userCount++;
+          // report progress
+          if(userCount % 100 == 0)
+            reporter.progress(); 
+        }
+
+        if(userCount > maxGroupSize) {
+          // counters are summed over the tasks, so the job counter is the
+          // sum of the task maxima; the maximum of each task is logged
+          // when the task closes
+          reporter.incrCounter("IPPS Stats",
+              "Sum of max group sizes per reducer", userCount - maxGroupSize);
+          maxGroupSize = userCount;
+        }
+        if(keyParts.length == 4)
+          reporter.incrCounter("IPPS Stats", "Hot ip sub-groups", 1);
+
+        if(store != null) {
+          compareStored(store, budget / 4, isCross, blockX, isSubnet, ip,
+              isLazy, lshMinUsers, output, reporter);
+          return userCount;
+        }
+      } finally {
+        if(store != null)
+          store.close();
+      }
+
+      if(isSubnet) {
+        // merge the records of a user, then compare the lazy and the
+        // active users separately by the length of the merged vectors.
+        // A user is in one block, so the merge stays within a block.
+        userSet = mergeUsers(userSet);
+        blockYSet = mergeUsers(blockYSet);
+        for(int t = 0; t < 2; t++) {
+          boolean lazy = t == 0;
+          compareGroup(usersOfType(userSet, lazy), usersOfType(blockYSet, lazy),
+              isCross, ip, lazy, lshMinUsers, output, reporter);
+        }
+      }
+      else compareGroup(userSet, blockYSet, isCross, ip, isLazy, lshMinUsers,
+          output, reporter);
+      return userCount;
+    }
+
+    // Compare the pairs of a group of users of one type. For a cross
+    // sub-group only the pairs across userSet and blockYSet are compared.
+    void compareGroup(Vector<UserActionProfile> userSet,
+      Vector<UserActionProfile> blockYSet, boolean isCross, String ip,
+      boolean isLazy, int lshMinUsers,
+      OutputCollector<UserPairIDs, SimMetric> output, Reporter reporter
+    ) throws IOException {
+      compareGroup(userSet, blockYSet, isCross, ip, isLazy, windowSize,
+          isLazy ? tvSimBarS : tvSimBarL, bitsetGrid, lshMinUsers, output,
+          reporter);
+    }
+
+    // Compare the pairs of a group with the given window size and
+    // similarity threshold, with the bitset kernel on the given grid
+    // (off if 0, which it has to be unless the grid is exact for the
+    // window), and with LSH if the group has at least lshMinUsers users
+    void compareGroup(Vector<UserActionProfile> userSet,
+      Vector<UserActionProfile> blockYSet, boolean isCross, String ip,
+      boolean isLazy, int windowSize, double simBar, long bitsetGrid,
+      int lshMinUsers, OutputCollector<UserPairIDs, SimMetric> output,
+      Reporter reporter
+    ) throws IOException {
+      if(collapse && !exhaustive && compareCollapsed(userSet, blockYSet,
+          isCross, ip, isLazy, windowSize, simBar, bitsetGrid, lshMinUsers,
+          output, reporter))
+        return;
+      boolean useLSH = !exhaustive && lshMinUsers > 0
+          && userSet.size() + blockYSet.size() >= lshMinUsers;
+      compareUsers(userSet, blockYSet, isCross, ip, isLazy, windowSize, simBar,
+          bitsetGrid, useLSH, output, reporter);
+    }
+
+    void compareUsers(Vector<UserActionProfile> userSet,
+      Vector<UserActionProfile> blockYSet, boolean isCross, String ip,
+      boolean isLazy, int windowSize, double simBar, long bitsetGrid,
+      boolean useLSH, OutputCollector<UserPairIDs, SimMetric> output,
+      Reporter reporter
+    ) throws IOException {
+      // users i < rowEnd are compared with users j >= max(i+1, colStart)
+      int rowEnd = userSet.size();
+      int colStart = 0;
+      if(isCross) {
+        colStart = userSet.size();
+        userSet.addAll(blockYSet);
       }
-      sLogger.info("total users: " + userCount);
 
       // compute similarity for the user set
-      int pairCount = 0;
+      CandidateIndex index = null;
+      if(useLSH) {
+        index = new LSHIndex(userSet, windowSize, lshBands, lshRows);
+        reporter.incrCounter("IPPS Stats", "LSH groups", 1);
+      }
+      else if(!exhaustive)
+        index = new CandidateIndex(userSet, windowSize);
+      TimeBitset bitsets = bitsets(userSet, bitsetGrid);
+      long[] stats = new long[NUM_STATS];
+      if(pool != null && userSet.size() >= threadMinUsers) {
+        compareRowsParallel(userSet, index, bitsets, rowEnd, colStart, ip,
+            isLazy, windowSize, simBar, output, reporter, stats);
+      }
+      else {
+        compareRows(userSet, index, bitsets, 0, rowEnd, colStart, ip, isLazy,
+            windowSize, simBar, output, reporter, stats);
+      }
+
+      reporter.incrCounter("IPPS Stats", "Pairs compared", stats[STAT_COMPARED]);
+      if(!exhaustive) {
+        reporter.incrCounter("IPPS Stats", useLSH ? "Pairs skipped by LSH"
+            : "Pairs skipped by index", stats[STAT_SKIPPED]);
+        reporter.incrCounter("IPPS Stats", "Pairs pruned by range",
+            stats[STAT_PRUNED_RANGE]);
+        reporter.incrCounter("IPPS Stats", "Pairs pruned by bound",
+            stats[STAT_PRUNED_BOUND]);
+        if(bitsets != null)
+          reporter.incrCounter("IPPS Stats", "Pairs by bitset", stats[STAT_BITSET]);
+      }
+      groupCompared += stats[STAT_COMPARED];
+    }
+
+    // A time vector as a hash key
+    static class VectorKey {
+      long[] v;
+      int hash;
+
+      VectorKey(long[] v) {
+        this.v = v;
+        this.hash = Arrays.hashCode(v);
+      }
+
+      public int hashCode() {
+        return hash;
+      }
+
+      public boolean equals(Object o) {
+        return o instanceof VectorKey && Arrays.equals(v, ((VectorKey) o).v);
+      }
+    }
+
+    // Compare a group whose users share time vectors by its distinct
+    // vectors only. The distinct vectors are compared like a group of
+    // their own, and every similar pair of vectors is expanded to the
+    // pairs of their users as it is found; users with the same vector
+    // have similarity 1.0. In a cross sub-group the two blocks are
+    // collapsed separately and only the distinct vectors of block x are
+    // compared with those of block y. The pairs are the same as without
+    // collapsing, with the user that comes first in the group first, but
+    // they are emitted by vector pair instead of by user. Returns false,
+    // having compared nothing, if less than ipps.minCollapse of the users
+    // share a vector with an earlier user.
+    boolean compareCollapsed(Vector<UserActionProfile> userSet,
+      Vector<UserActionProfile> blockYSet, boolean isCross, final String ip,
+      final boolean isLazy, int windowSize, double simBar, long bitsetGrid,
+      int lshMinUsers, final OutputCollector<UserPairIDs, SimMetric> output,
+      final Reporter reporter
+    ) throws IOException {
+      final Vector<UserActionProfile> users = new Vector<UserActionProfile>(userSet);
+      users.addAll(blockYSet);
+      int numUsers = users.size();
+      // the users from colStart on are block y of a cross sub-group
+      int colStart = userSet.size();
+
+      // the class of each user; the classes of block y come after those
+      // of block x
+      Vector<UserActionProfile> distinct = new Vector<UserActionProfile>();
+      int[] classOf = new int[numUsers];
+      int numClassesX = 0;
+      if(isCross) {
+        collapseUsers(users, 0, colStart, distinct, classOf);
+        numClassesX = distinct.size();
+        collapseUsers(users, colStart, numUsers, distinct, classOf);
+      }
+      else collapseUsers(users, 0, numUsers, distinct, classOf);
+      int numClasses = distinct.size();
+      if(numClasses == numUsers || numUsers - numClasses < minCollapse * numUsers)
+        return false;
+
+      // the users of each class, in order
+      final int[][] members = new int[numClasses][];
+      int[] sizes = new int[numClasses];
+      for(int u = 0; u < numUsers; u++)
+        sizes[classOf[u]]++;
+      for(int c = 0; c < numClasses; c++)
+        members[c] = new int[sizes[c]];
+      Arrays.fill(sizes, 0);
+      for(int u = 0; u < numUsers; u++)
+        members[classOf[u]][sizes[classOf[u]]++] = u;
+      reporter.incrCounter("IPPS Stats", "Collapsed groups", 1);
+      reporter.incrCounter("IPPS Stats", "Users collapsed", numUsers - numClasses);
+
+      // identical vectors; in a cross sub-group all users of a class are
+      // in the same block, so none of their pairs is compared here
+      for(int c = 0; c < numClasses && !isCross && 1.0 >= simBar; c++) {
+        int[] m = members[c];
+        for(int p = 0; p < m.length; p++) {
+          for(int q = p + 1; q < m.length; q++)
+            emitExpanded(users, m[p], m[q], 1.0, ip, isLazy, output);
+        }
+      }
+
+      // similar distinct vectors; the pairs come back keyed by class and
+      // are expanded right away
+      OutputCollector<UserPairIDs, SimMetric> expand =
+          new OutputCollector<UserPairIDs, SimMetric>() {
+        public void collect(UserPairIDs key, SimMetric value) throws IOException {
+          // emitPair reuses the pair, so it is read before expanding
+          int a = Integer.parseInt(key.getUID1());
+          int b = Integer.parseInt(key.getUID2());
+          double similarity = value.getSim();
+          for(int i : members[a]) {
+            for(int j : members[b])
+              emitExpanded(users, i, j, similarity, ip, isLazy, output);
+          }
+          reporter.progress();
+        }
+      };
+      Vector<UserActionProfile> distinctY = new Vector<UserActionProfile>();
+      if(isCross) {
+        distinctY.addAll(distinct.subList(numClassesX, numClasses));
+        distinct.setSize(numClassesX);
+      }
+      boolean useLSH = lshMinUsers > 0 && numClasses >= lshMinUsers;
+      compareUsers(distinct, distinctY, isCross, ip, isLazy, windowSize, simBar,
+          bitsetGrid, useLSH, expand, reporter);
+      return true;
+    }
+
+    // Give every distinct time vector of the users [from, to) a class,
+    // numbered on from the size of distinct, and add a user for it to
+    // distinct whose id is the class index
+    static void collapseUsers(Vector<UserActionProfile> users, int from, int to,
+      Vector<UserActionProfile> distinct, int[] classOf
+    ) {
+      HashMap<VectorKey, Integer> classes = new HashMap<VectorKey, Integer>();
+      for(int u = from; u < to; u++) {
+        VectorKey vector = new VectorKey(users.get(u).getTimeVector());
+        Integer c = classes.get(vector);
+        if(c == null) {
+          c = distinct.size();
+          classes.put(vector, c);
+          distinct.addElement(new UserActionProfile(Integer.toString(c), vector.v));
+        }
+        classOf[u] = c;
+      }
+    }
+
+    // Emit the pair of the users i and j of a collapsed group, the one
+    // that comes first in the group first
+    static void emitExpanded(Vector<UserActionProfile> users, int i, int j,
+      double similarity, String ip, boolean isLazy,
+      OutputCollector<UserPairIDs, SimMetric> output
+    ) throws IOException {
+      emitPair(users.get(Math.min(i, j)), users.get(Math.max(i, j)), similarity,
+          ip, isLazy, output);
+    }
+
+    // The bitsets of the users of a group on the grid bitsetGrid for the
+    // bitset kernel, or null if the merge kernel is used for all pairs
+    static TimeBitset bitsets(Vector<UserActionProfile> userSet, long bitsetGrid) {
+      if(exhaustive || bitsetGrid <= 0)
+        return null;
+      return new TimeBitset(userSet, bitsetGrid);
+    }
+
+    // Compare the users of a group held in a UserStore by blocks of
+    // about blockBytes: the pairs within each block, then the pairs
+    // across every two blocks. Only two blocks are on the heap at a time.
+    void compareStored(UserStore store, long blockBytes, boolean isCross,
+      int blockX, boolean isSubnet, String ip, boolean isLazy, int lshMinUsers,
+      OutputCollector<UserPairIDs, SimMetric> output, Reporter reporter
+    ) throws IOException {
+      reporter.incrCounter("IPPS Stats", "Spilled groups", 1);
+      int numUsers = store.size();
+      for(int t = 0; t < 2; t++) {
+        // both types in the subnet mode, otherwise the type of the key
+        boolean lazy = t == 0;
+        if(!isSubnet && lazy != isLazy)
+          continue;
+        int[] xs = new int[numUsers];
+        int[] ys = new int[numUsers];
+        int numX = 0, numY = 0;
+        for(int u = 0; u < numUsers; u++) {
+          if(isSubnet && (store.length(u) < tvLenBar) != lazy)
+            continue;
+          if(isCross && PairSimMapper.blockOf(store.id(u), hotGrid) != blockX)
+            ys[numY++] = u;
+          else xs[numX++] = u;
+        }
+
+        int[] xBlocks = blocks(store, xs, numX, blockBytes);
+        if(isCross) {
+          int[] yBlocks = blocks(store, ys, numY, blockBytes);
+          for(int a = 0; a + 1 < xBlocks.length; a++) {
+            Vector<UserActionProfile> blockA = store.load(xs, xBlocks[a], xBlocks[a + 1]);
+            for(int b = 0; b + 1 < yBlocks.length; b++) {
+              compareGroup(new Vector<UserActionProfile>(blockA),
+                  store.load(ys, yBlocks[b], yBlocks[b + 1]), true, ip, lazy,
+                  lshMinUsers, output, reporter);
+            }
+          }
+          continue;
+        }
+        for(int a = 0; a + 1 < xBlocks.length; a++) {
+          Vector<UserActionProfile> blockA = store.load(xs, xBlocks[a], xBlocks[a + 1]);
+          compareGroup(new Vector<UserActionProfile>(blockA),
+              new Vector<UserActionProfile>(), false, ip, lazy, lshMinUsers,
+              output, reporter);
+          for(int b = a + 1; b + 1 < xBlocks.length; b++) {
+            compareGroup(new Vector<UserActionProfile>(blockA),
+                store.load(xs, xBlocks[b], xBlocks[b + 1]), true, ip, lazy,
+                lshMinUsers, output, reporter);
+          }
+        }
+      }
+    }
+
+    // Split users[0, n) into blocks of about blockBytes. Returns the
+    // block boundaries, starting with 0 and ending with n.
+    static int[] blocks(UserStore store, int[] users, int n, long blockBytes) {
+      Vector<Integer> bounds = new Vector<Integer>();
+      bounds.addElement(0);
+      long bytes = 0;
+      for(int k = 0; k < n; k++) {
+        long size = 64 + 8 * (long) store.length(users[k]);
+        if(bytes > 0 && bytes + size > blockBytes) {
+          bounds.addElement(k);
+          bytes = 0;
+        }
+        bytes += size;
+      }
+      if(n > 0)
+        bounds.addElement(n);
+      int[] res = new int[bounds.size()];
+      for(int k = 0; k < res.length; k++)
+        res[k] = bounds.get(k);
+      return res;
+    }
+
+    // Merge the time vectors of the records of the same user, keeping
+    // the users in the order of their first record
+    static Vector<UserActionProfile> mergeUsers(Vector<UserActionProfile> users) {
+      LinkedHashMap<String, UserActionProfile> merged =
+          new LinkedHashMap<String, UserActionProfile>();
+      for(UserActionProfile user : users) {
+        UserActionProfile current = merged.get(user.getID());
+        if(current == null)
+          merged.put(user.getID(), user);
+        else merged.put(user.getID(), new UserActionProfile(user.getID(),
+            VectorUtils.mergeVectors(current.getTimeVector(), user.getTimeVector())));
+      }
+      return new Vector<UserActionProfile>(merged.values());
+    }
+
+    // The lazy (short TV) or the active users of a set
+    static Vector<UserActionProfile> usersOfType(Vector<UserActionProfile> users,
+      boolean isLazy) {
+      Vector<UserActionProfile> res = new Vector<UserActionProfile>();
+      for(UserActionProfile user : users) {
+        if((user.getTimeVector().length < tvLenBar) == isLazy)
+          res.addElement(user);
+      }
+      return res;
+    }
+
+    // Compare the users i in [rowFrom, rowTo) with the users
+    // j >= max(i+1, colStart), in increasing order of i and j. With an
+    // index only the candidate pairs are compared, and with bitsets the
+    // pairs of covered users use the bitset kernel. The reporter is only
+    // used for progress and may be null when running on a worker thread.
+    void compareRows(Vector<UserActionProfile> userSet, CandidateIndex index,
+      TimeBitset bitsets, int rowFrom, int rowTo, int colStart, String ip,
+      boolean isLazy, int windowSize, double simBar,
+      OutputCollector<UserPairIDs, SimMetric> output,
+      Reporter reporter, long[] stats
+    ) throws IOException {
       int numUsers = userSet.size();
-      for(int i = 0; i < numUsers; i++) {
-        UserActionProfile curUser = userSet.get(i);
-        for(int j = i+1; j < numUsers; j++) {
-          UserActionProfile toComp = userSet.get(j);
-          double similarity = VectorUtils.vectorSimilarity(curUser.getTimeVector(),
-                toComp.getTimeVector(), windowSize);
-	  if( (similarity >= tvSimBarL && isLazy == false) || (similarity >= tvSimBarS && isLazy == true) ) {
-            UserPair up = new UserPair(curUser.getID(), toComp.getID(), similarity,
-                	ip, isLazy);
-            output.collect(NullWritable.get(), new Text(up.toString()));
-	  }
-          pairCount++;
-          if(pairCount % 100 == 0)
+      if(index == null) {
+        for(int i = rowFrom; i < rowTo; i++) {
+          UserActionProfile curUser = userSet.get(i);
+          for(int j = Math.max(i+1, colStart); j < numUsers; j++) {
+            comparePair(curUser, userSet.get(j), ip, isLazy, windowSize, simBar,
+                output);
+            stats[STAT_COMPARED]++;
+            if(reporter != null && stats[STAT_COMPARED] % 100 == 0)
+              reporter.progress();
+          }
+        }
+      }
+      else {
+        // only compare the pairs that can reach the threshold, in tiles:
+        // the candidates of ROW_TILE rows are compared with one column
+        // tile of about TILE_POINTS packed time points after the other,
+        // so that a column tile stays in cache across the rows. The hits
+        // of each row are buffered and emitted in increasing order of i
+        // and j, the same order as in the exhaustive mode.
+        CandidateIndex.Scratch scratch = new CandidateIndex.Scratch(index);
+        int[] candidates = new int[numUsers];
+        int[] columnTiles = tiles(index.offsets, numUsers);
+        int[][] rowCandidates = new int[ROW_TILE][];
+        int[] rowPos = new int[ROW_TILE];
+        int[][] hitCandidates = new int[ROW_TILE][];
+        double[][] hitSims = new double[ROW_TILE][];
+        int[] numHits = new int[ROW_TILE];
+        long[] pruned = new long[2];
+        for(int rowTile = rowFrom; rowTile < rowTo; rowTile += ROW_TILE) {
+          int rows = Math.min(ROW_TILE, rowTo - rowTile);
+          for(int r = 0; r < rows; r++) {
+            int i = rowTile + r;
+            int numCandidates = index.candidates(i, simBar, candidates, scratch);
+            int first = 0;
+            while(first < numCandidates && candidates[first] < colStart)
+              first++;
+            int compared = numCandidates - first;
+            rowCandidates[r] = Arrays.copyOfRange(candidates, first, numCandidates);
+            rowPos[r] = 0;
+            hitCandidates[r] = new int[compared];
+            hitSims[r] = new double[compared];
+            numHits[r] = 0;
+            stats[STAT_COMPARED] += compared;
+            stats[STAT_SKIPPED] += numUsers - Math.max(i+1, colStart) - compared;
+          }
+
+          // the candidates of the row tile are all after its first row
+          int tile = Arrays.binarySearch(columnTiles, Math.max(rowTile + 1, colStart));
+          if(tile < 0)
+            tile = -tile - 2;
+          for(; tile + 1 < columnTiles.length; tile++) {
+            int colEnd = columnTiles[tile + 1];
+            for(int r = 0; r < rows; r++) {
+              int[] cands = rowCandidates[r];
+              int from = rowPos[r];
+              int to = from;
+              while(to < cands.length && cands[to] < colEnd)
+                to++;
+              if(to == from)
+                continue;
+              numHits[r] += compareBatch(index, bitsets, rowTile + r,
+                  userSet.get(rowTile + r).getTimeVector(), cands, from, to,
+                  windowSize, simBar, hitCandidates[r], hitSims[r], numHits[r],
+                  pruned, stats);
+              rowPos[r] = to;
+            }
+          }
+
+          for(int r = 0; r < rows; r++) {
+            UserActionProfile curUser = userSet.get(rowTile + r);
+            for(int h = 0; h < numHits[r]; h++) {
+              emitPair(curUser, userSet.get(hitCandidates[r][h]), hitSims[r][h],
+                  ip, isLazy, output);
+            }
+          }
+          if(reporter != null)
             reporter.progress();
         }
+        stats[STAT_PRUNED_RANGE] += pruned[0];
+        stats[STAT_PRUNED_BOUND] += pruned[1];
       }
-      sLogger.info("user pairs processed: " + pairCount);
     }
+
+    // Split the packed vectors of a group into column tiles of about
+    // TILE_POINTS time points. Returns the tile boundaries, starting with
+    // 0 and ending with numUsers.
+    static int[] tiles(int[] offsets, int numUsers) {
+      Vector<Integer> bounds = new Vector<Integer>();
+      bounds.addElement(0);
+      int tileStart = 0;
+      for(int j = 1; j < numUsers; j++) {
+        if(offsets[j] - offsets[tileStart] >= TILE_POINTS) {
+          bounds.addElement(j);
+          tileStart = j;
+        }
+      }
+      if(numUsers > 0)
+        bounds.addElement(numUsers);
+      int[] res = new int[bounds.size()];
+      for(int k = 0; k < res.length; k++)
+        res[k] = bounds.get(k);
+      return res;
+    }
+
+    // Compare user i with the candidates cands[from, to) in one batch, or
+    // with the bitset kernel for the pairs that the bitsets cover. The
+    // hits are written to outCands and outSims from outStart on, in the
+    // order of cands, and their number is returned.
+    static int compareBatch(CandidateIndex index, TimeBitset bitsets, int i,
+      long[] query, int[] cands, int from, int to, int windowSize,
+      double simBar, int[] outCands, double[] outSims, int outStart, long[] pruned,
+      long[] stats
+    ) {
+      if(bitsets == null || !bitsets.covers(i)) {
+        return VectorUtils.batchSimilarity(query, index.points, index.offsets,
+            cands, from, to, windowSize, simBar, outCands, outSims, outStart,
+            pruned);
+      }
+      // candidates off the grid are merged one at a time, so that the
+      // hits stay in order
+      int n = outStart;
+      for(int k = from; k < to; k++) {
+        int j = cands[k];
+        if(!bitsets.covers(j)) {
+          n += VectorUtils.batchSimilarity(query, index.points, index.offsets,
+              cands, k, k + 1, windowSize, simBar, outCands, outSims, n, pruned);
+          continue;
+        }
+        stats[STAT_BITSET]++;
+        double similarity = bitsets.similarity(i, j, simBar);
+        if(similarity == VectorUtils.PRUNED_BY_BOUND) {
+          pruned[1]++;
+          continue;
+        }
+        outCands[n] = j;
+        outSims[n] = similarity;
+        n++;
+      }
+      return n - outStart;
+    }
+
+    // The output of one chunk of rows, buffered by a worker thread
+    static class RowChunk implements OutputCollector<UserPairIDs, SimMetric> {
+      Vector<UserPairIDs> keys = new Vector<UserPairIDs>();
+      Vector<SimMetric> values = new Vector<SimMetric>();
+      long[] stats = new long[NUM_STATS];
+
+      // emitPair reuses the pair, so it is copied
+      public void collect(UserPairIDs key, SimMetric value) {
+        keys.addElement(new UserPairIDs(key.getUID1(), key.getUID2()));
+        values.addElement(new SimMetric(value.getSim(), value.getIP(),
+            value.getUserType()));
+      }
+    }
+
+    // Split the rows of the triangular i<j iteration space into chunks of
+    // about the same number of pairs and compare them on the worker
+    // pool. Workers buffer their output, which is handed to the
+    // OutputCollector on this thread only, either in row order (with
+    // ipps.deterministicOrder) or as the chunks complete. At most two
+    // chunks per thread are submitted and not yet written, so a slow
+    // chunk cannot make the finished ones behind it pile up in memory.
+    void compareRowsParallel(final Vector<UserActionProfile> userSet,
+      final CandidateIndex index, final TimeBitset bitsets, int rowEnd,
+      final int colStart, final String ip, final boolean isLazy,
+      int windowSize, double simBar,
+      OutputCollector<UserPairIDs, SimMetric> output,
+      Reporter reporter, long[] stats
+    ) throws IOException {
+      int numUsers = userSet.size();
+      long totalPairs = 0;
+      for(int i = 0; i < rowEnd; i++)
+        totalPairs += numUsers - Math.max(i+1, colStart);
+      long chunkPairs = Math.max(1, totalPairs / (reduceThreads * 16));
+
+      // the rows [from, to) of every chunk
+      Vector<int[]> chunks = new Vector<int[]>();
+      int rowFrom = 0;
+      while(rowFrom < rowEnd) {
+        int rowTo = rowFrom;
+        long pairs = 0;
+        while(rowTo < rowEnd && (pairs < chunkPairs || rowTo == rowFrom)) {
+          pairs += numUsers - Math.max(rowTo+1, colStart);
+          rowTo++;
+        }
+        chunks.addElement(new int[] {rowFrom, rowTo});
+        rowFrom = rowTo;
+      }
+
+      CompletionService<RowChunk> service =
+          new ExecutorCompletionService<RowChunk>(pool);
+      Vector<Future<RowChunk>> futures = new Vector<Future<RowChunk>>();
+      int maxInFlight = 2 * reduceThreads;
+      try {
+        while(futures.size() < chunks.size() && futures.size() < maxInFlight)
+          futures.addElement(submitChunk(service, userSet, index, bitsets,
+              chunks.get(futures.size()), colStart, ip, isLazy, windowSize,
+              simBar));
+        for(int c = 0; c < chunks.size(); c++) {
+          Future<RowChunk> future;
+          if(deterministicOrder) {
+            future = futures.get(c);
+            while(!future.isDone()) {
+              waitForChunk(future);
+              reporter.progress();
+            }
+          }
+          else {
+            while((future = service.poll(10, TimeUnit.SECONDS)) == null)
+              reporter.progress();
+          }
+          RowChunk chunk = future.get();
+          for(int k = 0; k < chunk.keys.size(); k++)
+            output.collect(chunk.keys.get(k), chunk.values.get(k));
+          for(int s = 0; s < NUM_STATS; s++)
+            stats[s] += chunk.stats[s];
+          // the chunk is written, so the next one can start
+          if(futures.size() < chunks.size())
+            futures.addElement(submitChunk(service, userSet, index, bitsets,
+                chunks.get(futures.size()), colStart, ip, isLazy, windowSize,
+                simBar));
+          reporter.progress();
+        }
+      } catch (InterruptedException e) {
+        for(Future<RowChunk> future : futures)
+          future.cancel(true);
+        throw new IOException("interrupted while comparing " + ip, e);
+      } catch (ExecutionException e) {
+        for(Future<RowChunk> future : futures)
+          future.cancel(true);
+        throw new IOException("pair comparison failed for " + ip, e.getCause());
+      }
+    }
+
+    // Compare the rows [rows[0], rows[1]) on the worker pool
+    Future<RowChunk> submitChunk(CompletionService<RowChunk> service,
+      final Vector<UserActionProfile> userSet, final CandidateIndex index,
+      final TimeBitset bitsets, int[] rows, final int colStart,
+      final String ip, final boolean isLazy, final int windowSize,
+      final double simBar
+    ) {
+      final int from = rows[0];
+      final int to = rows[1];
+      return service.submit(new Callable<RowChunk>() {
+        public RowChunk call() throws IOException {
+          RowChunk chunk = new RowChunk();
+          compareRows(userSet, index, bitsets, from, to, colStart, ip,
+              isLazy, windowSize, simBar, chunk, null, chunk.stats);
+          return chunk;
+        }
+      });
+    }
+
+    // wait up to 10 seconds for a chunk to complete
+    static void waitForChunk(Future<RowChunk> future)
+      throws InterruptedException, ExecutionException {
+      try {
+        future.get(10, TimeUnit.SECONDS);
+      } catch (TimeoutException e) {
+        // not done yet; the caller reports progress and waits again
+      }
+    }
+
+    // compute the similarity of two users with the plain kernel and emit
+    // the pair if it reaches simBar
+    void comparePair(UserActionProfile curUser, UserActionProfile toComp,
+      String ip, boolean isLazy, int windowSize, double simBar,
+      OutputCollector<UserPairIDs, SimMetric> output
+    ) throws IOException {
+      double similarity = VectorUtils.vectorSimilarity(curUser.getTimeVector(),
+          toComp.getTimeVector(), windowSize);
+      if(similarity >= simBar)
+        emitPair(curUser, toComp, similarity, ip, isLazy, output);
+    }
+
+    static void emitPair(UserActionProfile curUser, UserActionProfile toComp,
+      double similarity, String ip, boolean isLazy,
+      OutputCollector<UserPairIDs, SimMetric> output
+    ) throws IOException {
+      UserPair up = emitted.get();
+      up.set(curUser.getID(), toComp.getID(), similarity, ip, isLazy);
+      output.collect(up.getUserIDs(), up.getSimMetric());
+    }
+
+    // The pair emitted by emitPair is reused for every pair of a thread,
+    // like the keys and values of a Hadoop task; collectors that keep
+    // the pair have to copy it
+    static final ThreadLocal<UserPair> emitted = new ThreadLocal<UserPair>() {
+      protected UserPair initialValue() {
+        return new UserPair("", "", 0.0, "", false);
+      }
+    };
  }
  
+ // The counter name of the decade of n, e.g. "< 100" for 10 to 99
+ static String decade(long n, String unit) {
+   for(long bound = 10; bound <= 1000000; bound *= 10) {
+     if(n < bound)
+       return "< " + bound + unit;
+   }
+   return ">= 1000000" + unit;
+ }
+
+ // The counter name of the similarity bucket b, [b/10, (b+1)/10)
+ static String similarityBucket(int b) {
+   if(b >= 10)
+     return "1.0";
+   return "0." + b + "-" + (b == 9 ? "1.0" : "0." + (b + 1));
+ }
+
+ // Merge the slowest groups reported by the reduce tasks in the job
+ // output outputDir into one "slowips" file in dir with the n slowest
+ // groups of the job. The per-task files are removed from the output,
+ // so that the next job does not read them as input.
+ static void mergeSlowGroups(JobConf conf, Path outputDir, Path dir, int n)
+     throws IOException {
+   FileSystem fs = outputDir.getFileSystem(conf);
+   FileStatus[] files = fs.globStatus(new Path(outputDir, "slowips-r-*"));
+   if(files == null || files.length == 0)
+     return;
+   Vector<String> lines = new Vector<String>();
+   for(FileStatus file : files) {
+     BufferedReader reader = new BufferedReader(
+         new InputStreamReader(fs.open(file.getPath())));
+     try {
+       String line;
+       while((line = reader.readLine()) != null)
+         lines.addElement(line);
+     } finally {
+       reader.close();
+     }
+   }
+   // "<group>\t<millis>\t...", the slowest first
+   Collections.sort(lines, new Comparator<String>() {
+     public int compare(String a, String b) {
+       long ta = Long.parseLong(a.split("\t")[1]);
+       long tb = Long.parseLong(b.split("\t")[1]);
+       return ta > tb ? -1 : (ta < tb ? 1 : 0);
+     }
+   });
+   BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+       fs.create(new Path(dir, "slowips"), true)));
+   try {
+     for(int k = 0; k < lines.size() && k < n; k++) {
+       writer.write(lines.get(k));
+       writer.newLine();
+     }
+   } finally {
+     writer.close();
+   }
+   for(FileStatus file : files)
+     fs.delete(file.getPath(), false);
+ }
+
  public int run(String[] args) throws Exception {
    if (args.length < 2) {
      System.err.println(
@@ -114,7 +1090,41 @@ public class PairSim extends Configured implements Tool {
          + "performed, in order to be enrolled into the active user set\n"
          + "ipps.tvSimBarL\tthe minimum similarity of a TV pair from the same "
          + "IP address for long TVs\n"
-         + "ipps.tvSimBarS\tthe minimum simiarity of short TV pairs\n\n"
+         + "ipps.tvSimBarS\tthe minimum simiarity of short TV pairs\n"
+         + "ipps.exhaustive\tcompare all pairs of users on an ip instead of "
+         + "only the candidate pairs from the time bucket index\n"
+         + "ipps.hotIPs\tcomma separated heavy ips whose users are split into "
+         + "a grid of sub-groups\n"
+         + "ipps.hotIPFile\toutput of HotIPSampler with more heavy ips\n"
+         + "ipps.hotGrid\tnumber of blocks per heavy ip (default 8)\n"
+         + "ipps.ipv4Prefix\tgroup IPv4 users by subnets of this prefix "
+         + "length, e.g. 24 (default 32, exact ips)\n"
+         + "ipps.ipv6Prefix\tgroup IPv6 users by subnets of this prefix "
+         + "length, e.g. 64 (default 128, exact ips)\n"
+         + "ipps.userStoreMB\tmemory for the users of a group, larger groups "
+         + "are spilled to local disk (default 128)\n"
+         + "ipps.lshMinUsers\tpropose the pairs of groups of at least this "
+         + "many users with MinHash LSH; approximate (default 0, never)\n"
+         + "ipps.lshBands, ipps.lshRows\tthe LSH bands and rows per band "
+         + "(default 32 and 2)\n"
+         + "ipps.bitsetGrid\tgrid step of discretized time points, longer "
+         + "than windowSize/2; pairs on the grid are compared with bitsets "
+         + "(default 0 for none)\n"
+         + "ipps.collapse\tcompare users with identical time vectors once "
+         + "(default true)\n"
+         + "ipps.minCollapse\tthe minimum share of the users of a group "
+         + "with a duplicate time vector for collapsing it (default 0.1)\n"
+         + "ipps.slowIPs\tnumber of slowest groups reported in "
+         + "OUTPUT_DIR_slowips (default 20, 0 for none)\n"
+         + "ipps.reduceThreads\tnumber of threads that compare the pairs of "
+         + "a large user group (default 1)\n"
+         + "ipps.threadMinUsers\tminimum group size for parallel comparison "
+         + "(default 1000)\n"
+         + "ipps.deterministicOrder\tkeep the single-threaded output order "
+         + "with ipps.reduceThreads\n"
+         + "ipps.seqOutput\twrite binary SequenceFile output instead of text "
+         + "(read it with ippp.seqInput)\n"
+         + "ipps.seqCompress\tblock-compress the SequenceFile output\n\n"
 
          + "Input format: uid\tip\ttimevector\n"
          + "timevector format: t1,t2,t3,...\n"
@@ -127,15 +1137,39 @@ public class PairSim extends Configured implements Tool {
    conf.setJobName("ip_action_similarity");
        
    conf.setMapOutputKeyClass(Text.class);
-   conf.setMapOutputValueClass(Text.class);
-   conf.setOutputKeyClass(NullWritable.class);
-   conf.setOutputValueClass(Text.class);
+   conf.setMapOutputValueClass(UserActionProfile.class);
+   conf.setOutputKeyClass(UserPairIDs.class);
+   conf.setOutputValueClass(SimMetric.class);
    conf.setMapperClass(PairSimMapper.class);
+   conf.setPartitionerClass(PairSimPartitioner.class);
    conf.setReducerClass(Reduce.class);
    conf.setInputFormat(KeyValueTextInputFormat.class);
-   conf.setOutputFormat(TextOutputFormat.class);
+   if(conf.getBoolean("ipps.seqOutput", false)) {
+     conf.setOutputFormat(SequenceFileOutputFormat.class);
+     if(conf.getBoolean("ipps.seqCompress", false)) {
+       FileOutputFormat.setCompressOutput(conf, true);
+       SequenceFileOutputFormat.setOutputCompressionType(conf,
+           SequenceFile.CompressionType.BLOCK);
+     }
+   }
+   else {
+     // "<uid1>,<uid2>" + "," + "<sim>,<ip>,<isLazy>" keeps the text
+     // output identical to UserPair.toString()
+     conf.set("mapred.textoutputformat.separator", ",");
+     conf.setOutputFormat(TextOutputFormat.class);
+   }
    conf.setNumReduceTasks(reducers);
 
+   // add the heavy ips found by the sampling pre-pass
+   String hotIPFile = conf.get("ipps.hotIPFile");
+   if(hotIPFile != null)
+     loadHotIPs(conf, new Path(hotIPFile));
+
+   // the slowest groups are reported next to the output
+   Path slowIPsDir = new Path(args[1] + "_slowips");
+   if(conf.getInt("ipps.slowIPs", 20) > 0)
+     conf.set("ipps.slowIPsDir", slowIPsDir.toString());
+
    // set the input directory
    FileInputFormat.setInputPaths(conf, new Path(args[0]));
 
@@ -143,6 +1177,7 @@ public class PairSim extends Configured implements Tool {
    FileSystem fs = FileSystem.get(conf);
    try {
      fs.delete(new Path(args[1]),true);     
+     fs.delete(slowIPsDir, true);
    } catch (IOException e) {
      System.err.println(e);
    }
@@ -150,9 +1185,43 @@ public class PairSim extends Configured implements Tool {
    // set the output directory
    FileOutputFormat.setOutputPath(conf, new Path(args[1]));
    JobClient.runJob(conf);
+   mergeSlowGroups(conf, new Path(args[1]), slowIPsDir,
+       conf.getInt("ipps.slowIPs", 20));
    return 0;
  }
 
+ // Read the "ip\tcount" lines written by HotIPSampler from a file or
+ // a directory of part files, and add the ips to ipps.hotIPs
+ static void loadHotIPs(JobConf conf, Path path) throws IOException {
+   FileSystem fs = path.getFileSystem(conf);
+   StringBuilder hotIPs = new StringBuilder();
+   String configured = conf.get("ipps.hotIPs");
+   if(configured != null)
+     hotIPs.append(configured);
+   int count = 0;
+   for(FileStatus status : fs.listStatus(path)) {
+     if(status.isDir() || status.getPath().getName().startsWith("_"))
+       continue;
+     BufferedReader reader = new BufferedReader(
+         new InputStreamReader(fs.open(status.getPath())));
+     try {
+       String line;
+       while((line = reader.readLine()) != null) {
+         if(line.length() == 0)
+           continue;
+         if(hotIPs.length() > 0)
+           hotIPs.append(',');
+         hotIPs.append(line.split("\t")[0]);
+         count++;
+       }
+     } finally {
+       reader.close();
+     }
+   }
+   sLogger.info("heavy ips loaded from " + path + ": " + count);
+   conf.set("ipps.hotIPs", hotIPs.toString());
+ }
+
  public static void main(String[] args) throws Exception {
    // Let ToolRunner handle generic command-line options
    int res = ToolRunner.run(new Configuration(), new PairSim(), args);
@@ -0,0 +1,437 @@
+import java.io.IOException;
+import java.util.*;
+import java.io.*;
+
+import org.apache.hadoop.fs.*;
+import org.apache.hadoop.conf.*;
+import org.apache.hadoop.io.*;
+import org.apache.hadoop.mapred.*;
+import org.apache.hadoop.mapred.lib.*;
+import org.apache.hadoop.util.*;
+import org.apache.log4j.Logger;
+
+/*
+ * PairSimDelta is the incremental daily mode of PairSim and PairPrune.
+ * It keeps a state directory with the profiles of the users on every ip
+ * and the similar pairs found so far, and given a delta input only
+ * compares the pairs that involve a user whose time vector changed.
+ *
+ * The first pass groups by ip the stored profiles, the delta profiles
+ * and the stored similar pairs of the ip. A delta record adds its time
+ * points to the stored vector of the user on the ip (or replaces it,
+ * with ipsd.replace). The stored pairs of the ip between unchanged users
+ * are kept as they are; the changed users are put first in the group
+ * and compared with the users after them with PairSim.Reduce, so every
+ * pair with a changed user is compared once. The pass writes the new
+ * state and marks the user pairs whose records changed.
+ *
+ * The second pass re-evaluates the PairPrune decision of the marked
+ * pairs only. It writes the B/L/S lines of PairPrune for them, and
+ * "uid1\tuid2\tN" for a marked pair that no longer qualifies, so that a
+ * previous decision can be retracted.
+ *
+ * The ipps.* and ippp.* options apply; with ipps.ipv4Prefix or
+ * ipps.ipv6Prefix the state is kept per subnet. A state directory that does not
+ * exist is empty, so the first run over the full input builds it. Heavy
+ * ips are not split into sub-groups in this mode.
+ *
+ * State: part-* SequenceFiles of (UserPairIDs, SimMetric) and
+ * profiles-r-* SequenceFiles of (ip, UserActionProfile)
+ */
+
+public class PairSimDelta extends Configured implements Tool {
+
+ // use log4j for logging
+ private static final Logger sLogger = Logger.getLogger(PairSimDelta.class);
+
+ // replace the stored time vector of a user instead of adding to it
+ public static boolean replace = false;
+
+ // Delta records "uid\tip\ttimevector", keyed by ip
+ public static class DeltaMap
+   extends MapReduceBase
+   implements Mapper<Text, Text, Text, IPStateRecord> {
+
+      Text outkey = new Text();
+
+      // the subnets that users are grouped by, or exact ips
+      IPPrefix prefix = new IPPrefix(32, 128);
+
+      public void configure(JobConf conf) {
+        prefix = IPPrefix.fromConf(conf);
+      }
+
+      public void map(
+        Text key,
+        Text value,
+        OutputCollector<Text, IPStateRecord> output,
+        Reporter reporter
+      ) throws IOException {
+        byte[] bytes = value.getBytes();
+        int len = value.getLength();
+        int ipStart = PairSimMapper.skipSpace(bytes, 0, len);
+        int ipEnd = PairSimMapper.skipToken(bytes, ipStart, len);
+        int arrStart = PairSimMapper.skipSpace(bytes, ipEnd, len);
+        int arrEnd = PairSimMapper.skipToken(bytes, arrStart, len);
+        if(ipStart == ipEnd || arrStart == arrEnd)
+          throw new IOException("malformed record for user " + key);
+
+        long[] timeVector = new long[VectorUtils.countElements(bytes, arrStart, arrEnd)];
+        VectorUtils.parseVector(bytes, arrStart, arrEnd, timeVector);
+        if(prefix.isExact())
+          outkey.set(bytes, ipStart, ipEnd - ipStart);
+        else outkey.set(prefix.subnet(Text.decode(bytes, ipStart, ipEnd - ipStart)));
+        output.collect(outkey, new IPStateRecord(IPStateRecord.NEW_PROFILE,
+            new UserActionProfile(key.toString(), timeVector)));
+        reporter.incrCounter("IPSD Stats", "Delta records", 1);
+      }
+ }
+
+ // Stored profiles, already keyed by ip
+ public static class ProfileMap
+   extends MapReduceBase
+   implements Mapper<Text, UserActionProfile, Text, IPStateRecord> {
+
+      public void map(
+        Text key,
+        UserActionProfile value,
+        OutputCollector<Text, IPStateRecord> output,
+        Reporter reporter
+      ) throws IOException {
+        output.collect(key, new IPStateRecord(IPStateRecord.OLD_PROFILE, value));
+      }
+ }
+
+ // Stored similar pairs, keyed by the ip they are similar on
+ public static class PairMap
+   extends MapReduceBase
+   implements Mapper<UserPairIDs, SimMetric, Text, IPStateRecord> {
+
+      Text outkey = new Text();
+
+      public void map(
+        UserPairIDs key,
+        SimMetric value,
+        OutputCollector<Text, IPStateRecord> output,
+        Reporter reporter
+      ) throws IOException {
+        outkey.set(value.getIP());
+        output.collect(outkey, new IPStateRecord(key, value));
+      }
+ }
+
+ public static class DeltaReduce
+    extends MapReduceBase implements Reducer<Text, IPStateRecord, UserPairIDs, SimMetric> {
+
+    PairSim.Reduce simReduce = new PairSim.Reduce();
+    MultipleOutputs outputs;
+
+    public void configure(JobConf conf) {
+      simReduce.configure(conf);
+      replace = conf.getBoolean("ipsd.replace", false);
+      outputs = new MultipleOutputs(conf);
+    }
+
+    public void close() throws IOException {
+      simReduce.close();
+      outputs.close();
+    }
+
+    public void reduce(
+      Text key,
+      Iterator<IPStateRecord> values,
+      final OutputCollector<UserPairIDs, SimMetric> output,
+      final Reporter reporter
+    ) throws IOException {
+      String ip = key.toString();
+      HashMap<String, UserActionProfile> users = new HashMap<String, UserActionProfile>();
+      HashMap<String, long[]> deltas = new HashMap<String, long[]>();
+      // Hadoop reuses the record, but not the fields that it reads
+      Vector<UserPairIDs> pairs = new Vector<UserPairIDs>();
+      Vector<SimMetric> sims = new Vector<SimMetric>();
+      while(values.hasNext()) {
+        IPStateRecord record = values.next();
+        if(record.getType() == IPStateRecord.OLD_PROFILE)
+          users.put(record.getUser().getID(), record.getUser());
+        else if(record.getType() == IPStateRecord.NEW_PROFILE) {
+          UserActionProfile user = record.getUser();
+          long[] delta = deltas.get(user.getID());
+          deltas.put(user.getID(), delta == null ? user.getTimeVector()
+              : VectorUtils.mergeVectors(delta, user.getTimeVector()));
+        }
+        else {
+          pairs.addElement(record.getPair());
+          sims.addElement(record.getSim());
+        }
+        reporter.progress();
+      }
+
+      // apply the delta to the stored profiles
+      HashSet<String> changed = new HashSet<String>();
+      for(Map.Entry<String, long[]> e : deltas.entrySet()) {
+        UserActionProfile user = users.get(e.getKey());
+        long[] timeVector = e.getValue();
+        if(user != null && !replace)
+          timeVector = VectorUtils.mergeVectors(user.getTimeVector(), timeVector);
+        if(user != null && Arrays.equals(user.getTimeVector(), timeVector))
+          continue;
+        users.put(e.getKey(), new UserActionProfile(e.getKey(), timeVector));
+        changed.add(e.getKey());
+      }
+
+      // MultipleOutputs only hands out raw collectors
+      @SuppressWarnings("unchecked")
+      OutputCollector<Text, UserActionProfile> profiles =
+          outputs.getCollector("profiles", reporter);
+      for(UserActionProfile user : users.values())
+        profiles.collect(key, user);
+
+      // keep the pairs between unchanged users, and mark the dropped ones
+      @SuppressWarnings("unchecked")
+      final OutputCollector<UserPairIDs, NullWritable> affected =
+          outputs.getCollector("affected", reporter);
+      for(int p = 0; p < pairs.size(); p++) {
+        UserPairIDs pair = pairs.get(p);
+        if(changed.contains(pair.getUID1()) || changed.contains(pair.getUID2())) {
+          markAffected(pair, affected);
+          reporter.incrCounter("IPSD Stats", "Pairs dropped", 1);
+        }
+        else {
+          output.collect(pair, sims.get(p));
+          reporter.incrCounter("IPSD Stats", "Pairs kept", 1);
+        }
+      }
+      if(changed.isEmpty())
+        return;
+      reporter.incrCounter("IPSD Stats", "Changed users", changed.size());
+
+      // the new similar pairs are kept and marked
+      OutputCollector<UserPairIDs, SimMetric> collector =
+          new OutputCollector<UserPairIDs, SimMetric>() {
+        public void collect(UserPairIDs pair, SimMetric sim) throws IOException {
+          output.collect(pair, sim);
+          markAffected(pair, affected);
+          reporter.incrCounter("IPSD Stats", "Pairs found", 1);
+        }
+      };
+
+      // compare the changed users with every user after them in the
+      // group of their user type
+      for(int t = 0; t < 2; t++) {
+        boolean isLazy = t == 0;
+        Vector<UserActionProfile> userSet = new Vector<UserActionProfile>();
+        Vector<UserActionProfile> unchanged = new Vector<UserActionProfile>();
+        for(UserActionProfile user : users.values()) {
+          if((user.getTimeVector().length < PairSim.tvLenBar) != isLazy)
+            continue;
+          if(changed.contains(user.getID()))
+            userSet.addElement(user);
+          else unchanged.addElement(user);
+        }
+        int numChanged = userSet.size();
+        if(numChanged == 0)
+          continue;
+        userSet.addAll(unchanged);
+
+        CandidateIndex index = null;
+        if(!PairSim.exhaustive)
+          index = new CandidateIndex(userSet, PairSim.windowSize);
+        TimeBitset bitsets = PairSim.Reduce.bitsets(userSet, PairSim.bitsetGrid);
+        double simBar = isLazy ? PairSim.tvSimBarS : PairSim.tvSimBarL;
+        long[] stats = new long[PairSim.Reduce.NUM_STATS];
+        if(simReduce.pool != null && userSet.size() >= PairSim.threadMinUsers) {
+          simReduce.compareRowsParallel(userSet, index, bitsets, numChanged, 0,
+              ip, isLazy, PairSim.windowSize, simBar, collector, reporter,
+              stats);
+        }
+        else {
+          simReduce.compareRows(userSet, index, bitsets, 0, numChanged, 0, ip,
+              isLazy, PairSim.windowSize, simBar, collector, reporter, stats);
+        }
+        reporter.incrCounter("IPSD Stats", "Pairs compared",
+            stats[PairSim.Reduce.STAT_COMPARED]);
+      }
+    }
+ }
+
+ // PairPrune merges the evidence of both orientations of a pair, so
+ // the pair is marked in uid order
+ static void markAffected(UserPairIDs pair,
+     OutputCollector<UserPairIDs, NullWritable> affected) throws IOException {
+   UserPairIDs canonical = new UserPairIDs(pair.getUID1(), pair.getUID2());
+   canonical.canonicalize();
+   affected.collect(canonical, NullWritable.get());
+ }
+
+ // The similar pairs of the new state, keyed by user pair
+ public static class StateMap
+   extends MapReduceBase
+   implements Mapper<UserPairIDs, SimMetric, UserPairIDs, IPStateRecord> {
+
+      public void map(
+        UserPairIDs key,
+        SimMetric value,
+        OutputCollector<UserPairIDs, IPStateRecord> output,
+        Reporter reporter
+      ) throws IOException {
+        // keyed in uid order like PairPrune; the record keeps the pair as
+        // it is stored
+        UserPairIDs pair = new UserPairIDs(key.getUID1(), key.getUID2());
+        pair.canonicalize();
+        output.collect(pair, new IPStateRecord(key, value));
+      }
+ }
+
+ // The markers of the pairs to re-evaluate
+ public static class AffectedMap
+   extends MapReduceBase
+   implements Mapper<UserPairIDs, NullWritable, UserPairIDs, IPStateRecord> {
+
+      IPStateRecord marker = new IPStateRecord();
+
+      public void map(
+        UserPairIDs key,
+        NullWritable value,
+        OutputCollector<UserPairIDs, IPStateRecord> output,
+        Reporter reporter
+      ) throws IOException {
+        output.collect(key, marker);
+      }
+ }
+
+ // Decide on the marked pairs as PairPrune.Reduce does
+ public static class PruneReduce
+    extends MapReduceBase implements Reducer<UserPairIDs, IPStateRecord, NullWritable, Text> {
+
+    public void configure(JobConf conf) {
+      PairPrune.loadParameters(conf);
+    }
+
+    public void reduce(
+      UserPairIDs key,
+      Iterator<IPStateRecord> values,
+      OutputCollector<NullWritable, Text> output,
+      Reporter reporter
+    ) throws IOException {
+      boolean isAffected = false;
+      PairEvidence total = new PairEvidence();
+      while(values.hasNext()) {
+        IPStateRecord record = values.next();
+        if(record.getType() == IPStateRecord.AFFECTED)
+          isAffected = true;
+        else total.merge(new PairEvidence(record.getSim(),
+            PairPrune.tvSimBarL, PairPrune.tvSimBarS));
+      }
+      if(!isAffected)
+        return;
+
+      reporter.incrCounter("IPSD Stats", "Pairs re-evaluated", 1);
+      if(total.getSimL() || total.getNumSimS() >= PairPrune.ipNumBar) {
+        String audit = PairEvidence.auditIPs > 0 ? total.getIPs() : null;
+        PairPrune.emitDecision(key, total.getSimL(), total.getNumSimS(),
+            PairPrune.ipNumBar, audit, output);
+      }
+      else PairPrune.emitRetraction(key, output);
+    }
+ }
+
+ // whether a glob matches any file
+ static boolean hasFiles(FileSystem fs, Path pattern) throws IOException {
+   FileStatus[] files = fs.globStatus(pattern);
+   return files != null && files.length > 0;
+ }
+
+ public int run(String[] args) throws Exception {
+   if (args.length < 4) {
+     System.err.println(
+         "Not enough arguments!\nRun as:\n"
+         + "hadoop jar PairSim.jar PairSimDelta [options] "
+         + "DELTA_DIR STATE_DIR NEW_STATE_DIR OUTPUT_DIR\n\n"
+
+         + "Available options are as below:\n"
+         + "the ipps.* options of PairSim and the ippp.* options of "
+         + "PairPrune\n"
+         + "ipsd.replace\treplace the stored time vector of a user on an ip "
+         + "with the delta instead of adding the delta to it\n\n"
+
+         + "DELTA_DIR holds the new actions, STATE_DIR the state of the "
+         + "previous run (may not exist)\n"
+         + "Input format: uid\tip\ttimevector\n"
+         + "timevector format: t1,t2,t3,...\n"
+         + "Output format: uid1\tuid2\tB|L|S|N for the re-evaluated pairs\n"
+      );
+     return 1;
+   }
+
+   Configuration configuration = getConf();
+   Path deltaDir = new Path(args[0]);
+   Path stateDir = new Path(args[1]);
+   Path newStateDir = new Path(args[2]);
+   Path outputDir = new Path(args[3]);
+
+   // similarity pass: update the state of the ips in the delta
+   JobConf conf = new JobConf(configuration, PairSimDelta.class);
+   conf.setJobName("ip_action_similarity_delta");
+   conf.setMapOutputKeyClass(Text.class);
+   conf.setMapOutputValueClass(IPStateRecord.class);
+   conf.setOutputKeyClass(UserPairIDs.class);
+   conf.setOutputValueClass(SimMetric.class);
+   conf.setReducerClass(DeltaReduce.class);
+   conf.setOutputFormat(SequenceFileOutputFormat.class);
+   conf.setNumReduceTasks(PairSim.reducers);
+   MultipleOutputs.addNamedOutput(conf, "profiles", SequenceFileOutputFormat.class,
+       Text.class, UserActionProfile.class);
+   MultipleOutputs.addNamedOutput(conf, "affected", SequenceFileOutputFormat.class,
+       UserPairIDs.class, NullWritable.class);
+
+   MultipleInputs.addInputPath(conf, deltaDir, KeyValueTextInputFormat.class,
+       DeltaMap.class);
+   FileSystem fs = stateDir.getFileSystem(conf);
+   if(hasFiles(fs, new Path(stateDir, "profiles-r-*"))) {
+     MultipleInputs.addInputPath(conf, new Path(stateDir, "profiles-r-*"),
+         SequenceFileInputFormat.class, ProfileMap.class);
+     if(hasFiles(fs, new Path(stateDir, "part-*")))
+       MultipleInputs.addInputPath(conf, new Path(stateDir, "part-*"),
+           SequenceFileInputFormat.class, PairMap.class);
+   }
+   else sLogger.info("no state in " + stateDir + ", starting from scratch");
+
+   FileSystem outFs = FileSystem.get(conf);
+   try {
+     outFs.delete(newStateDir, true);
+     outFs.delete(outputDir, true);
+   } catch (IOException e) {
+     System.err.println(e);
+   }
+   FileOutputFormat.setOutputPath(conf, newStateDir);
+   JobClient.runJob(conf);
+
+   // prune pass: re-evaluate the decisions of the marked pairs
+   if(!hasFiles(outFs, new Path(newStateDir, "affected-r-*"))) {
+     sLogger.info("no pair changed, nothing to re-evaluate");
+     return 0;
+   }
+   conf = new JobConf(configuration, PairSimDelta.class);
+   conf.setJobName("ip_action_sim_prum_delta");
+   conf.setMapOutputKeyClass(UserPairIDs.class);
+   conf.setMapOutputValueClass(IPStateRecord.class);
+   conf.setOutputKeyClass(NullWritable.class);
+   conf.setOutputValueClass(Text.class);
+   conf.setReducerClass(PruneReduce.class);
+   conf.setOutputFormat(TextOutputFormat.class);
+   conf.setNumReduceTasks(PairPrune.reducers);
+   MultipleInputs.addInputPath(conf, new Path(newStateDir, "part-*"),
+       SequenceFileInputFormat.class, StateMap.class);
+   MultipleInputs.addInputPath(conf, new Path(newStateDir, "affected-r-*"),
+       SequenceFileInputFormat.class, AffectedMap.class);
+   FileOutputFormat.setOutputPath(conf, outputDir);
+   JobClient.runJob(conf);
+   return 0;
+ }
+
+ public static void main(String[] args) throws Exception {
+   // Let ToolRunner handle generic command-line options
+   int res = ToolRunner.run(new Configuration(), new PairSimDelta(), args);
+   System.exit(res);
+ }
+}
@@ -16,42 +16,127 @@ import org.apache.hadoop.filecache.*;
 
 public class PairSimMapper
   extends MapReduceBase
-  implements Mapper<Text, Text, Text, Text> {
+  implements Mapper<Text, Text, Text, UserActionProfile> {
 
   // The threshold on the TV lenghth above which the TVs are consider long
   public static int tvLenBar = 5;
 
+  // number of blocks that the users of a heavy ip are split into
+  public static int hotGrid = 8;
+
+  // heavy ips whose users are split into a grid of sub-groups
+  HashSet<String> hotIPs = new HashSet<String>();
+
+  // the subnets that users are grouped by, or exact ips
+  IPPrefix prefix = new IPPrefix(32, 128);
+
+  // whether the users of an exact ip are one group "ip,A" as well, for
+  // a reducer that splits them by type itself (PairSimSweep)
+  boolean groupAll = false;
+
   public void configure(JobConf conf) {
   // load the parameter
     tvLenBar = conf.getInt("ipps.tvLenBar", 5);
+    hotGrid = conf.getInt("ipps.hotGrid", 8);
+    String[] ips = conf.getStrings("ipps.hotIPs");
+    if(ips != null)
+      hotIPs.addAll(Arrays.asList(ips));
+    prefix = IPPrefix.fromConf(conf);
+    groupAll = conf.getBoolean("ipps.groupAll", false);
   }  
 
+  private static final byte[] LAZY_SUFFIX = { ',', 'T' };
+  private static final byte[] ACTIVE_SUFFIX = { ',', 'F' };
+  private static final byte[] ALL_SUFFIX = { ',', 'A' };
+
+  // Reused across map calls; collect() serializes them right away
+  Text outkey = new Text();
+  UserActionProfile user_time = new UserActionProfile();
+
+  // The value "ip\ttime_array" is scanned in Text's backing byte array:
+  // the ip is copied into the reused key as bytes and the time array is
+  // parsed in place, so no Scanner, String or boxed Long is created
+  // for the record.
   public void map(
     Text key,
     Text value,
-    OutputCollector<Text, Text> output,
+    OutputCollector<Text, UserActionProfile> output,
     Reporter reporter
   ) throws IOException {
 
     String userid = key.toString(); // userid
-    Scanner scanin = new Scanner(value.toString()); // ip + \t + time_array
+    byte[] bytes = value.getBytes(); // ip + \t + time_array
+    int len = value.getLength();
+
+    int ipStart = skipSpace(bytes, 0, len);
+    int ipEnd = skipToken(bytes, ipStart, len);
+    int arrStart = skipSpace(bytes, ipEnd, len);
+    int arrEnd = skipToken(bytes, arrStart, len);
+    if(ipStart == ipEnd || arrStart == arrEnd)
+      throw new IOException("malformed record for user " + userid);
 
-    String ip = scanin.next();
-    String timearr = scanin.next();
-    String user_time = userid + "\t" + timearr;
+    // the time array is parsed once here and shipped to the reducer
+    // in binary form, so the reducer does not need to parse it again
+    int arrLen = VectorUtils.countElements(bytes, arrStart, arrEnd);
+    long[] timeVector = new long[arrLen];
+    VectorUtils.parseVector(bytes, arrStart, arrEnd, timeVector);
+    user_time.set(userid, timeVector);
     
-    int arrLen = getTimeArrLen(timearr);
-    String outkey;
-    if(arrLen < tvLenBar) // a lazy user
-      outkey = ip + "," + "T";
-    else outkey = ip + "," + "F"; // an active user    
+    String subnet = null;
+    if(!prefix.isExact()) {
+      // the users of a subnet are one group "subnet,A"; the reducer
+      // merges the records of a user and splits the users by type
+      subnet = prefix.subnet(Text.decode(bytes, ipStart, ipEnd - ipStart));
+      outkey.set(subnet + ",A");
+    }
+    else if(groupAll) {
+      outkey.set(bytes, ipStart, ipEnd - ipStart);
+      outkey.append(ALL_SUFFIX, 0, ALL_SUFFIX.length);
+    }
+    else {
+      outkey.set(bytes, ipStart, ipEnd - ipStart);
+      if(arrLen < tvLenBar) // a lazy user
+        outkey.append(LAZY_SUFFIX, 0, LAZY_SUFFIX.length);
+      else outkey.append(ACTIVE_SUFFIX, 0, ACTIVE_SUFFIX.length); // an active user    
+    }
 
-    output.collect(new Text(outkey), new Text(user_time));
+    if(!hotIPs.isEmpty() && hotIPs.contains(subnet != null ? subnet
+        : Text.decode(bytes, ipStart, ipEnd - ipStart))) {
+      // A heavy ip: the user belongs to block b and is sent to the
+      // sub-groups (b,k) or (k,b) for every block k, so every pair of
+      // users meets in exactly one sub-group.
+      String ipkey = outkey.toString();
+      int b = blockOf(userid, hotGrid);
+      for(int k = 0; k < hotGrid; k++) {
+        outkey.set(ipkey + "," + Math.min(b, k) + "," + Math.max(b, k));
+        output.collect(outkey, user_time);
+      }
+      reporter.incrCounter("IPPS Stats", "Hot ip records", 1);
+    }
+    else output.collect(outkey, user_time);
     reporter.progress();
   }
-  
-  public int getTimeArrLen(String timearr){
-    Vector<Long> timeVector = VectorUtils.string2Vector(timearr);
-    return timeVector.size();
+
+  // The first position at or after start that is not whitespace
+  static int skipSpace(byte[] bytes, int start, int end) {
+    while(start < end && isSpace(bytes[start]))
+      start++;
+    return start;
+  }
+
+  // The first position at or after start that is whitespace
+  static int skipToken(byte[] bytes, int start, int end) {
+    while(start < end && !isSpace(bytes[start]))
+      start++;
+    return start;
+  }
+
+  static boolean isSpace(byte b) {
+    return b == '\t' || b == ' ' || b == '\n' || b == '\r';
+  }
+
+  // The block of a user on a heavy ip
+  public static int blockOf(String userid, int grid) {
+    return (userid.hashCode() & Integer.MAX_VALUE) % grid;
   }
 }
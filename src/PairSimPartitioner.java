@@ -0,0 +1,39 @@
+import java.io.IOException;
+import java.util.*;
+
+import org.apache.hadoop.io.*;
+import org.apache.hadoop.mapred.*;
+
+/*
+ * Partitioner for PairSim
+ *
+ * Plain keys "ip,T|F" are hashed like the default HashPartitioner. The
+ * sub-groups "ip,T|F,x,y" of a heavy ip are placed on consecutive
+ * reducers starting from the hash of the ip key, so the sub-groups of
+ * one heavy ip go to different reducers whenever there are enough of
+ * them.
+ */
+
+public class PairSimPartitioner implements Partitioner<Text, UserActionProfile> {
+
+  // number of blocks that the users of a heavy ip are split into
+  int hotGrid = 8;
+
+  public void configure(JobConf conf) {
+    hotGrid = conf.getInt("ipps.hotGrid", 8);
+  }
+
+  public int getPartition(Text key, UserActionProfile value, int numPartitions) {
+    String[] keyParts = key.toString().split(",");
+    if(keyParts.length < 4)
+      return (key.hashCode() & Integer.MAX_VALUE) % numPartitions;
+
+    String ipKey = keyParts[0] + "," + keyParts[1];
+    int x = Integer.parseInt(keyParts[2]);
+    int y = Integer.parseInt(keyParts[3]);
+    // index of the block pair (x,y), x <= y, in the upper triangle
+    int cell = x * hotGrid - x * (x - 1) / 2 + (y - x);
+    int base = ipKey.hashCode() & Integer.MAX_VALUE;
+    return (int) (((long) base + cell) % numPartitions);
+  }
+}
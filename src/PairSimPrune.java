@@ -0,0 +1,197 @@
+import java.io.IOException;
+import java.util.*;
+import java.io.*;
+
+import org.apache.hadoop.fs.*;
+import org.apache.hadoop.conf.*;
+import org.apache.hadoop.io.*;
+import org.apache.hadoop.mapred.*;
+import org.apache.hadoop.mapred.lib.*;
+import org.apache.hadoop.util.*;
+import org.apache.log4j.Logger;
+
+/*
+ * PairSimPrune runs PairSim and PairPrune as one pipeline without
+ * materializing every similar (pair, ip) record.
+ *
+ * The PairSim reducer is wrapped so that the similar pairs it emits are
+ * aggregated in a hash table in the reduce task (in-mapper combining)
+ * into PairEvidence, the flag and count that PairPrune needs. The table
+ * is written out when the task closes, or when it grows beyond
+ * ipsp.maxPairs, so the intermediate data holds about one compact
+ * record per user pair per reduce task. A second pass runs the combiner
+ * and reducer of PairPrune on the evidence and emits the same B/L/S
+ * lines.
+ *
+ * Both passes take the ipps.* and ippp.* options of PairSim and
+ * PairPrune. Pairs are keyed in uid order as in PairPrune, so the
+ * decisions are the same as running the two jobs back to back.
+ */
+
+public class PairSimPrune extends Configured implements Tool {
+
+ // use log4j for logging
+ private static final Logger sLogger = Logger.getLogger(PairSimPrune.class);
+
+ // the maximum number of pairs aggregated in memory by a reduce task
+ public static int maxPairs = 1000000;
+
+ // PairSim reducer whose output is aggregated into pair evidence
+ public static class SimReduce
+    extends MapReduceBase implements Reducer<Text, UserActionProfile, UserPairIDs, PairEvidence> {
+
+    PairSim.Reduce simReduce = new PairSim.Reduce();
+
+    HashMap<UserPairIDs, PairEvidence> table = new HashMap<UserPairIDs, PairEvidence>();
+
+    // the output of the task, kept to flush the table from close()
+    OutputCollector<UserPairIDs, PairEvidence> output = null;
+    Reporter reporter = null;
+
+    // adds the similar pairs emitted by PairSim.Reduce to the table
+    OutputCollector<UserPairIDs, SimMetric> aggregator =
+        new OutputCollector<UserPairIDs, SimMetric>() {
+      public void collect(UserPairIDs key, SimMetric value) throws IOException {
+        key.canonicalize();
+        PairEvidence evidence = new PairEvidence(value,
+            PairPrune.tvSimBarL, PairPrune.tvSimBarS);
+        PairEvidence current = table.get(key);
+        if(current == null) // PairSim.emitPair reuses the pair
+          table.put(new UserPairIDs(key.getUID1(), key.getUID2()), evidence);
+        else current.merge(evidence);
+        if(table.size() >= maxPairs)
+          flush();
+      }
+    };
+
+    public void configure(JobConf conf) {
+      simReduce.configure(conf);
+      // load parameters
+      PairPrune.loadParameters(conf);
+      maxPairs = conf.getInt("ipsp.maxPairs", 1000000);
+    }
+
+    public void reduce(
+      Text key,
+      Iterator<UserActionProfile> values,
+      OutputCollector<UserPairIDs, PairEvidence> output,
+      Reporter reporter
+    ) throws IOException {
+      this.output = output;
+      this.reporter = reporter;
+      simReduce.reduce(key, values, aggregator, reporter);
+    }
+
+    void flush() throws IOException {
+      for(Map.Entry<UserPairIDs, PairEvidence> e : table.entrySet())
+        output.collect(e.getKey(), e.getValue());
+      reporter.incrCounter("IPSP Stats", "Pairs flushed", table.size());
+      reporter.incrCounter("IPSP Stats", "Table flushes", 1);
+      table.clear();
+    }
+
+    public void close() throws IOException {
+      if(output != null && table.size() > 0)
+        flush();
+      simReduce.close();
+    }
+ }
+
+ public int run(String[] args) throws Exception {
+   if (args.length < 2) {
+     System.err.println(
+         "Not enough arguments!\nRun as:\n"
+         + "hadoop jar PairSim.jar PairSimPrune [options] "
+         + "INPUT_DIR OUTPUT_DIR\n\n"
+
+         + "Available options are as below:\n"
+         + "the ipps.* options of PairSim and the ippp.* options of "
+         + "PairPrune\n"
+         + "ipsp.maxPairs\tthe maximum number of pairs aggregated in memory "
+         + "by a reduce task\n"
+         + "ipsp.tmpDir\tdirectory of the pair evidence (default "
+         + "OUTPUT_DIR_evidence)\n\n"
+
+         + "Input format: uid\tip\ttimevector\n"
+         + "timevector format: t1,t2,t3,...\n"
+      );
+     return 1;
+   }
+
+   Configuration configuration = getConf();
+   Path evidenceDir = new Path(configuration.get("ipsp.tmpDir", args[1] + "_evidence"));
+   Path slowIPsDir = new Path(args[1] + "_slowips");
+
+   // similarity pass: group users by ip and aggregate the similar pairs
+   JobConf simConf = new JobConf(configuration, PairSimPrune.class);
+   simConf.setJobName("ip_action_sim_evidence");
+   simConf.setMapOutputKeyClass(Text.class);
+   simConf.setMapOutputValueClass(UserActionProfile.class);
+   simConf.setOutputKeyClass(UserPairIDs.class);
+   simConf.setOutputValueClass(PairEvidence.class);
+   simConf.setMapperClass(PairSimMapper.class);
+   simConf.setPartitionerClass(PairSimPartitioner.class);
+   simConf.setReducerClass(SimReduce.class);
+   simConf.setInputFormat(KeyValueTextInputFormat.class);
+   simConf.setOutputFormat(SequenceFileOutputFormat.class);
+   simConf.setNumReduceTasks(PairSim.reducers);
+   String hotIPFile = simConf.get("ipps.hotIPFile");
+   if(hotIPFile != null)
+     PairSim.loadHotIPs(simConf, new Path(hotIPFile));
+   if(simConf.getInt("ipps.slowIPs", 20) > 0)
+     simConf.set("ipps.slowIPsDir", slowIPsDir.toString());
+   FileInputFormat.setInputPaths(simConf, new Path(args[0]));
+
+   FileSystem fs = FileSystem.get(simConf);
+   try {
+     fs.delete(evidenceDir, true);
+     fs.delete(new Path(args[1]), true);
+     fs.delete(slowIPsDir, true);
+   } catch (IOException e) {
+     System.err.println(e);
+   }
+   FileOutputFormat.setOutputPath(simConf, evidenceDir);
+   JobClient.runJob(simConf);
+   PairSim.mergeSlowGroups(simConf, evidenceDir, slowIPsDir,
+       simConf.getInt("ipps.slowIPs", 20));
+
+   // prune pass: merge the evidence of each pair and decide
+   JobConf pruneConf = new JobConf(configuration, PairSimPrune.class);
+   pruneConf.setJobName("ip_action_sim_prum");
+   pruneConf.setMapOutputKeyClass(UserPairIDs.class);
+   pruneConf.setMapOutputValueClass(PairEvidence.class);
+   pruneConf.setOutputKeyClass(NullWritable.class);
+   pruneConf.setOutputValueClass(Text.class);
+   pruneConf.setMapperClass(IdentityMapper.class);
+   pruneConf.setCombinerClass(PairPrune.Combine.class);
+   pruneConf.setReducerClass(PairPrune.Reduce.class);
+   pruneConf.setInputFormat(SequenceFileInputFormat.class);
+   pruneConf.setOutputFormat(TextOutputFormat.class);
+   pruneConf.setNumReduceTasks(PairPrune.reducers);
+   FileInputFormat.setInputPaths(pruneConf, evidenceDir);
+   // the adjacency lists are built from the pairs, which are written
+   // once; an edge is listed under both users only with ippp.symmetric
+   boolean adjacency = pruneConf.getBoolean("ippp.adjacency", false);
+   Path pairsDir = adjacency ? new Path(args[1] + "_pairs") : new Path(args[1]);
+   if(adjacency)
+     pruneConf.setBoolean("ippp.symmetric", false);
+   fs.delete(pairsDir, true);
+   FileOutputFormat.setOutputPath(pruneConf, pairsDir);
+   JobClient.runJob(pruneConf);
+   if(adjacency) {
+     PairPrune.adjacency(configuration, pairsDir, new Path(args[1]));
+     fs.delete(pairsDir, true);
+   }
+
+   // the evidence is only needed within the pipeline
+   fs.delete(evidenceDir, true);
+   sLogger.info("B/L/S pairs written to " + args[1]);
+   return 0;
+ }
+
+ public static void main(String[] args) throws Exception {
+   // Let ToolRunner handle generic command-line options
+   int res = ToolRunner.run(new Configuration(), new PairSimPrune(), args);
+   System.exit(res);
+ }
+}
@@ -0,0 +1,364 @@
+import java.io.IOException;
+import java.util.*;
+import java.io.*;
+
+import org.apache.hadoop.fs.*;
+import org.apache.hadoop.conf.*;
+import org.apache.hadoop.io.*;
+import org.apache.hadoop.mapred.*;
+import org.apache.hadoop.mapred.lib.*;
+import org.apache.hadoop.util.*;
+import org.apache.log4j.Logger;
+
+/*
+ * PairSimSweep runs PairSim and PairPrune for a list of parameter
+ * configurations (ipsw.configs) in one pipeline, to calibrate the
+ * thresholds without a pair of jobs per setting.
+ *
+ * The input is read and grouped by ip once, with the users of both
+ * types in one group. For every ip the configurations that share the
+ * window size and the TV length threshold share the pair loop: their
+ * lazy and their active users are compared once with the lowest of
+ * their thresholds, and each similar pair is kept as evidence of every
+ * configuration whose threshold it reaches. A second pass aggregates
+ * the evidence per configuration and pair and writes the B/L/S lines of
+ * configuration k to OUTPUT_DIR/c<k>-r-*; OUTPUT_DIR/configs lists the
+ * configurations.
+ *
+ * A configuration is a comma separated list of windowSize, tvLenBar,
+ * tvSimBarL, tvSimBarS and ipNumBar settings, and configurations are
+ * separated by semicolons, e.g.
+ * "windowSize=3600,tvSimBarL=0.7;windowSize=1800,ipNumBar=3".
+ * Settings that are left out take the ipps.* options of PairSim and
+ * ippp.ipNumBar of PairPrune. The similarity thresholds are used both
+ * for emitting and for judging pairs, as when the ipps.* and ippp.*
+ * thresholds of the two jobs are the same. Heavy ips are not split
+ * into sub-groups in this mode.
+ */
+
+public class PairSimSweep extends Configured implements Tool {
+
+ // use log4j for logging
+ private static final Logger sLogger = Logger.getLogger(PairSimSweep.class);
+
+ // One parameter configuration of the sweep
+ public static class Config {
+   int windowSize;
+   int tvLenBar;
+   double tvSimBarL;
+   double tvSimBarS;
+   int ipNumBar;
+
+   public String toString() {
+     return "windowSize=" + windowSize + ",tvLenBar=" + tvLenBar
+         + ",tvSimBarL=" + (float) tvSimBarL + ",tvSimBarS=" + (float) tvSimBarS
+         + ",ipNumBar=" + ipNumBar;
+   }
+ }
+
+ // Parse the configurations of ipsw.configs. The thresholds are read as
+ // floats, like conf.getFloat reads them for PairSim and PairPrune.
+ public static Config[] parseConfigs(JobConf conf) throws IOException {
+   String spec = conf.get("ipsw.configs", "");
+   Vector<Config> configs = new Vector<Config>();
+   for(String part : spec.split(";")) {
+     if(part.trim().length() == 0)
+       continue;
+     Config config = new Config();
+     config.windowSize = conf.getInt("ipps.windowSize", 3600);
+     config.tvLenBar = conf.getInt("ipps.tvLenBar", 5);
+     config.tvSimBarL = conf.getFloat("ipps.tvSimBarL", 0.7f);
+     config.tvSimBarS = conf.getFloat("ipps.tvSimBarS", 0.6f);
+     config.ipNumBar = conf.getInt("ippp.ipNumBar", 4);
+     for(String setting : part.split(",")) {
+       int eq = setting.indexOf('=');
+       if(eq < 0)
+         throw new IOException("malformed setting in ipsw.configs: " + setting);
+       String name = setting.substring(0, eq).trim();
+       String value = setting.substring(eq + 1).trim();
+       try {
+         if(name.equals("windowSize"))
+           config.windowSize = Integer.parseInt(value);
+         else if(name.equals("tvLenBar"))
+           config.tvLenBar = Integer.parseInt(value);
+         else if(name.equals("tvSimBarL"))
+           config.tvSimBarL = Float.parseFloat(value);
+         else if(name.equals("tvSimBarS"))
+           config.tvSimBarS = Float.parseFloat(value);
+         else if(name.equals("ipNumBar"))
+           config.ipNumBar = Integer.parseInt(value);
+         else throw new IOException("unknown setting in ipsw.configs: " + name);
+       } catch (NumberFormatException e) {
+         throw new IOException("malformed setting in ipsw.configs: " + setting);
+       }
+     }
+     configs.addElement(config);
+   }
+   if(configs.isEmpty())
+     throw new IOException("ipsw.configs lists no configuration");
+   return configs.toArray(new Config[configs.size()]);
+ }
+
+ // Compares the users of every ip once per window size and TV length
+ // threshold, and emits the evidence of every configuration as
+ // ("<k>,<uid1>,<uid2>", PairEvidence)
+ public static class SimReduce
+    extends MapReduceBase implements Reducer<Text, UserActionProfile, Text, PairEvidence> {
+
+    PairSim.Reduce simReduce = new PairSim.Reduce();
+    Config[] configs;
+
+    // ipps.bitsetGrid, which is only used by the loops whose window size
+    // it is exact for
+    long bitsetGrid;
+
+    // the configurations that share a pair loop, keyed "window,tvLenBar"
+    LinkedHashMap<String, Vector<Integer>> loops =
+        new LinkedHashMap<String, Vector<Integer>>();
+
+    public void configure(JobConf conf) {
+      simReduce.configure(conf);
+      PairPrune.loadParameters(conf);
+      bitsetGrid = conf.getLong("ipps.bitsetGrid", 0);
+      try {
+        configs = parseConfigs(conf);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      for(int k = 0; k < configs.length; k++) {
+        String loop = configs[k].windowSize + "," + configs[k].tvLenBar;
+        if(!loops.containsKey(loop))
+          loops.put(loop, new Vector<Integer>());
+        loops.get(loop).addElement(k);
+      }
+    }
+
+    public void close() throws IOException {
+      simReduce.close();
+    }
+
+    public void reduce(
+      Text key,
+      Iterator<UserActionProfile> values,
+      final OutputCollector<Text, PairEvidence> output,
+      final Reporter reporter
+    ) throws IOException {
+      Vector<UserActionProfile> users = new Vector<UserActionProfile>();
+      while(values.hasNext()) {
+        // Hadoop reuses the value object, so keep our own copy
+        UserActionProfile value = values.next();
+        users.addElement(new UserActionProfile(value.getID(), value.getTimeVector()));
+        if(users.size() % 100 == 0)
+          reporter.progress();
+      }
+      // the records of a user on several ips of a subnet
+      users = PairSim.Reduce.mergeUsers(users);
+      String ip = key.toString().split(",")[0];
+
+      for(Vector<Integer> loop : loops.values()) {
+        Config first = configs[loop.get(0)];
+        long grid = TimeBitset.isExact(bitsetGrid, first.windowSize) ? bitsetGrid : 0;
+        for(int t = 0; t < 2; t++) {
+          final boolean isLazy = t == 0;
+          final Vector<Config> sharing = new Vector<Config>();
+          final Vector<Integer> indices = new Vector<Integer>();
+          double bar = Double.MAX_VALUE;
+          for(int k : loop) {
+            sharing.addElement(configs[k]);
+            indices.addElement(k);
+            bar = Math.min(bar, isLazy ? configs[k].tvSimBarS : configs[k].tvSimBarL);
+          }
+          Vector<UserActionProfile> group = new Vector<UserActionProfile>();
+          for(UserActionProfile user : users) {
+            if((user.getTimeVector().length < first.tvLenBar) == isLazy)
+              group.addElement(user);
+          }
+          if(group.size() < 2)
+            continue;
+
+          simReduce.compareGroup(group, new Vector<UserActionProfile>(), false,
+              ip, isLazy, first.windowSize, bar, grid, PairSim.lshMinUsers,
+              new OutputCollector<UserPairIDs, SimMetric>() {
+            public void collect(UserPairIDs pair, SimMetric sim) throws IOException {
+              // the evidence of both orientations is merged, as in PairPrune
+              pair.canonicalize();
+              for(int c = 0; c < sharing.size(); c++) {
+                Config config = sharing.get(c);
+                if(sim.getSim() < (isLazy ? config.tvSimBarS : config.tvSimBarL))
+                  continue;
+                output.collect(new Text(indices.get(c) + "," + pair.toString()),
+                    new PairEvidence(sim, config.tvSimBarL, config.tvSimBarS));
+              }
+            }
+          }, reporter);
+        }
+      }
+      reporter.incrCounter("IPSW Stats", "Groups", 1);
+    }
+ }
+
+ // Merges the evidence of a configuration and pair before the shuffle
+ public static class Combine
+    extends MapReduceBase implements Reducer<Text, PairEvidence, Text, PairEvidence> {
+
+    public void configure(JobConf conf) {
+      PairPrune.loadParameters(conf);
+    }
+
+    public void reduce(
+      Text key,
+      Iterator<PairEvidence> values,
+      OutputCollector<Text, PairEvidence> output,
+      Reporter reporter
+    ) throws IOException {
+      PairEvidence total = new PairEvidence();
+      while(values.hasNext())
+        total.merge(values.next());
+      output.collect(key, total);
+    }
+ }
+
+ // Judges a pair for one configuration and writes the decision to the
+ // output of the configuration
+ public static class PruneReduce
+    extends MapReduceBase implements Reducer<Text, PairEvidence, NullWritable, Text> {
+
+    Config[] configs;
+    MultipleOutputs outputs;
+
+    public void configure(JobConf conf) {
+      PairPrune.loadParameters(conf);
+      outputs = new MultipleOutputs(conf);
+      try {
+        configs = parseConfigs(conf);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    public void close() throws IOException {
+      outputs.close();
+    }
+
+    @SuppressWarnings("unchecked")
+    public void reduce(
+      Text key,
+      Iterator<PairEvidence> values,
+      OutputCollector<NullWritable, Text> output,
+      Reporter reporter
+    ) throws IOException {
+      String line = key.toString();
+      int comma = line.indexOf(',');
+      int k = Integer.parseInt(line.substring(0, comma));
+      UserPairIDs pair = new UserPairIDs(line.substring(comma + 1));
+
+      PairEvidence total = new PairEvidence();
+      while(values.hasNext())
+        total.merge(values.next());
+      String audit = PairEvidence.auditIPs > 0 ? total.getIPs() : null;
+
+      PairPrune.emitDecision(pair, total.getSimL(), total.getNumSimS(),
+          configs[k].ipNumBar, audit,
+          (OutputCollector<NullWritable, Text>) outputs.getCollector("c" + k, reporter));
+      reporter.incrCounter("IPSW Stats", "Pairs judged c" + k, 1);
+    }
+ }
+
+ public int run(String[] args) throws Exception {
+   if (args.length < 2) {
+     System.err.println(
+         "Not enough arguments!\nRun as:\n"
+         + "hadoop jar PairSim.jar PairSimSweep [options] "
+         + "INPUT_DIR OUTPUT_DIR\n\n"
+
+         + "Available options are as below:\n"
+         + "ipsw.configs\tthe configurations, e.g. "
+         + "\"windowSize=3600,tvSimBarL=0.7;windowSize=1800,ipNumBar=3\" "
+         + "with the settings windowSize, tvLenBar, tvSimBarL, tvSimBarS "
+         + "and ipNumBar\n"
+         + "the other ipps.* options of PairSim and ippp.* options of "
+         + "PairPrune, except the heavy ip options and ippp.adjacency\n\n"
+
+         + "Input format: uid\tip\ttimevector\n"
+         + "timevector format: t1,t2,t3,...\n"
+         + "Output: OUTPUT_DIR/c<k>-r-* with the B/L/S lines of "
+         + "configuration k, listed in OUTPUT_DIR/configs\n"
+      );
+     return 1;
+   }
+
+   Configuration configuration = getConf();
+   Path outputDir = new Path(args[1]);
+   Path evidenceDir = new Path(args[1] + "_evidence");
+
+   // similarity pass: group users by ip once and compare them for all
+   // the configurations
+   JobConf simConf = new JobConf(configuration, PairSimSweep.class);
+   Config[] configs = parseConfigs(simConf);
+   simConf.setJobName("ip_action_sim_sweep");
+   simConf.setBoolean("ipps.groupAll", true);
+   simConf.set("ipps.hotIPs", "");
+   simConf.setMapOutputKeyClass(Text.class);
+   simConf.setMapOutputValueClass(UserActionProfile.class);
+   simConf.setOutputKeyClass(Text.class);
+   simConf.setOutputValueClass(PairEvidence.class);
+   simConf.setMapperClass(PairSimMapper.class);
+   simConf.setReducerClass(SimReduce.class);
+   simConf.setInputFormat(KeyValueTextInputFormat.class);
+   simConf.setOutputFormat(SequenceFileOutputFormat.class);
+   simConf.setNumReduceTasks(PairSim.reducers);
+   FileInputFormat.setInputPaths(simConf, new Path(args[0]));
+
+   FileSystem fs = FileSystem.get(simConf);
+   try {
+     fs.delete(evidenceDir, true);
+     fs.delete(outputDir, true);
+   } catch (IOException e) {
+     System.err.println(e);
+   }
+   FileOutputFormat.setOutputPath(simConf, evidenceDir);
+   JobClient.runJob(simConf);
+
+   // prune pass: judge every pair per configuration
+   JobConf pruneConf = new JobConf(configuration, PairSimSweep.class);
+   pruneConf.setJobName("ip_action_sim_prum_sweep");
+   pruneConf.setMapOutputKeyClass(Text.class);
+   pruneConf.setMapOutputValueClass(PairEvidence.class);
+   pruneConf.setOutputKeyClass(NullWritable.class);
+   pruneConf.setOutputValueClass(Text.class);
+   pruneConf.setMapperClass(IdentityMapper.class);
+   pruneConf.setCombinerClass(Combine.class);
+   pruneConf.setReducerClass(PruneReduce.class);
+   pruneConf.setInputFormat(SequenceFileInputFormat.class);
+   pruneConf.setOutputFormat(TextOutputFormat.class);
+   pruneConf.setNumReduceTasks(PairPrune.reducers);
+   for(int k = 0; k < configs.length; k++) {
+     MultipleOutputs.addNamedOutput(pruneConf, "c" + k, TextOutputFormat.class,
+         NullWritable.class, Text.class);
+   }
+   FileInputFormat.setInputPaths(pruneConf, evidenceDir);
+   FileOutputFormat.setOutputPath(pruneConf, outputDir);
+   JobClient.runJob(pruneConf);
+   fs.delete(evidenceDir, true);
+
+   // list the configurations next to their outputs
+   BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+       fs.create(new Path(outputDir, "configs"), true)));
+   try {
+     for(int k = 0; k < configs.length; k++) {
+       writer.write("c" + k + "\t" + configs[k]);
+       writer.newLine();
+     }
+   } finally {
+     writer.close();
+   }
+   sLogger.info(configs.length + " configurations written to " + args[1]);
+   return 0;
+ }
+
+ public static void main(String[] args) throws Exception {
+   // Let ToolRunner handle generic command-line options
+   int res = ToolRunner.run(new Configuration(), new PairSimSweep(), args);
+   System.exit(res);
+ }
+}
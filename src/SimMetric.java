@@ -1,11 +1,20 @@
 import java.io.*;
 import java.util.*;
 
-public class SimMetric {
+import org.apache.hadoop.io.*;
+
+public class SimMetric implements Writable {
   double sim;
   String ip;
   boolean isLazy;
  
+  // Used by Hadoop to instantiate the value before readFields
+  public SimMetric() {
+    this.sim = 0.0;
+    this.ip = "";
+    this.isLazy = false;
+  }
+
   public SimMetric(double d, String s, boolean b) {
     this.sim = d;
     this.ip = s;
@@ -13,10 +22,30 @@ public class SimMetric {
   }
 
   public SimMetric(String in) {
-    String[] parts = in.split(",");
-    this.sim = Double.parseDouble(parts[0]);
-    this.ip = parts[1];
-    this.isLazy = parts[2].equals("T");
+    int c1 = in.indexOf(',');
+    int c2 = in.indexOf(',', c1 + 1);
+    this.sim = Double.parseDouble(in.substring(0, c1));
+    this.ip = in.substring(c1 + 1, c2);
+    this.isLazy = in.charAt(c2 + 1) == 'T';
+  }
+
+  // Reset the similarity, so that it can be reused for every pair
+  public void set(double d, String s, boolean b) {
+    this.sim = d;
+    this.ip = s;
+    this.isLazy = b;
+  }
+
+  public void write(DataOutput out) throws IOException {
+    out.writeDouble(this.sim);
+    Text.writeString(out, this.ip);
+    out.writeBoolean(this.isLazy);
+  }
+
+  public void readFields(DataInput in) throws IOException {
+    this.sim = in.readDouble();
+    this.ip = Text.readString(in);
+    this.isLazy = in.readBoolean();
   }
 
   public String toString() {
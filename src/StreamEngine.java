@@ -0,0 +1,446 @@
+import java.io.IOException;
+import java.util.*;
+import java.io.*;
+import java.net.*;
+
+import org.apache.hadoop.conf.*;
+import org.apache.hadoop.io.*;
+import org.apache.hadoop.mapred.*;
+import org.apache.hadoop.util.*;
+import org.apache.log4j.Logger;
+
+/*
+ * StreamEngine is an online version of PairSim and PairPrune. It reads
+ * "uid\tip\ttimestamp" events from a local file or a socket and
+ * writes a PairPrune decision line as soon as the decision of a user
+ * pair changes, instead of after the daily run.
+ *
+ * For every ip (or subnet, with ipps.ipv4Prefix and ipps.ipv6Prefix) it
+ * keeps the time points of its users within the last ipst.horizon
+ * seconds of the stream, and the pairs of its users that are similar.
+ * Older points are evicted as the stream time advances. A pair on an ip
+ * is similar when both users have the same type, by the number of their
+ * points and ipps.tvLenBar, and the similarity of VectorUtils reaches
+ * the ipps.* and the ippp.* threshold of the type. The evidence of a
+ * pair is kept over all its ips, and the decision is made like in
+ * PairPrune.
+ *
+ * A pair can only be similar if one user has a point within
+ * windowSize/2 of a point of the other, and a new point far from all
+ * the points of the other user leaves their common elements as they
+ * are. So a new event is compared with the users that have a point near
+ * it, and with all the users near any point of its user when the user
+ * changes type. A user that loses points to eviction is compared with
+ * all the users near its remaining points. The users already similar to
+ * the user are re-evaluated as well, which may retract their pairs.
+ *
+ * Output: "uid1\tuid2\tB|L|S" lines as written by PairPrune, and
+ * "uid1\tuid2\tN" when a pair no longer qualifies. The user ids of a
+ * pair are in string order. Events should arrive about in time order;
+ * an event older than the horizon is dropped.
+ */
+
+public class StreamEngine extends Configured implements Tool {
+
+ // use log4j for logging
+ private static final Logger sLogger = Logger.getLogger(StreamEngine.class);
+
+ // how long the time points of a user are kept, in seconds
+ public static long horizon = 86400;
+
+ // number of events between evictions on all ips
+ public static int sweepEvents = 100000;
+
+ // the parameters of PairSim
+ static int windowSize = 3600;
+ static int tvLenBar = 5;
+
+ // the thresholds of a similar pair on an ip, the higher of the PairSim
+ // and the PairPrune one
+ static double simBarL = 0.7;
+ static double simBarS = 0.6;
+
+ // The time points of a user on an ip within the horizon, sorted
+ static class UserWindow {
+   String uid;
+   long[] points = new long[4];
+   int from = 0;
+   int to = 0;
+
+   // the users that are similar to this one on the ip, and whether they
+   // are similar as lazy users
+   LinkedHashMap<UserWindow, Boolean> similar = new LinkedHashMap<UserWindow, Boolean>();
+
+   UserWindow(String uid) {
+     this.uid = uid;
+   }
+
+   int length() {
+     return to - from;
+   }
+
+   boolean isLazy() {
+     return length() < tvLenBar;
+   }
+
+   // add a point and return its position
+   int add(long t) {
+     if(to == points.length) {
+       long[] grown = length() < points.length / 2 ? points
+           : new long[points.length * 2];
+       System.arraycopy(points, from, grown, 0, length());
+       to = length();
+       from = 0;
+       points = grown;
+     }
+     // the points usually arrive in order
+     int pos = to;
+     while(pos > from && points[pos - 1] > t)
+       pos--;
+     System.arraycopy(points, pos, points, pos + 1, to - pos);
+     points[pos] = t;
+     to++;
+     return pos;
+   }
+
+   // drop the earliest point
+   void removeFirst() {
+     from++;
+   }
+ }
+
+ // The users of an ip and their points in time order, the oldest first
+ static class IPState {
+   LinkedHashMap<String, UserWindow> users = new LinkedHashMap<String, UserWindow>();
+   long[] times = new long[16];
+   UserWindow[] owners = new UserWindow[16];
+   int head = 0;
+   int tail = 0;
+
+   void add(long t, UserWindow owner) {
+     if(tail == times.length) {
+       int size = tail - head;
+       int capacity = size < times.length / 2 ? times.length : times.length * 2;
+       long[] newTimes = new long[capacity];
+       UserWindow[] newOwners = new UserWindow[capacity];
+       System.arraycopy(times, head, newTimes, 0, size);
+       System.arraycopy(owners, head, newOwners, 0, size);
+       times = newTimes;
+       owners = newOwners;
+       head = 0;
+       tail = size;
+     }
+     int pos = tail;
+     if(pos > head && times[pos - 1] > t)
+       pos = lowerBound(t + 1);
+     System.arraycopy(times, pos, times, pos + 1, tail - pos);
+     System.arraycopy(owners, pos, owners, pos + 1, tail - pos);
+     times[pos] = t;
+     owners[pos] = owner;
+     tail++;
+   }
+
+   // the first position in [head, tail) with a time of at least t
+   int lowerBound(long t) {
+     int lo = head;
+     int hi = tail;
+     while(lo < hi) {
+       int mid = (lo + hi) >>> 1;
+       if(times[mid] < t)
+         lo = mid + 1;
+       else hi = mid;
+     }
+     return lo;
+   }
+ }
+
+ // The evidence of a user pair over its ips and its last decision
+ static class PairState {
+   int numSimL = 0;
+   int numSimS = 0;
+   String decision = null;
+ }
+
+ HashMap<String, IPState> ips = new HashMap<String, IPState>();
+ HashMap<UserPairIDs, PairState> pairs = new HashMap<UserPairIDs, PairState>();
+ OutputCollector<NullWritable, Text> output;
+ IPPrefix prefix = new IPPrefix(32, 128);
+
+ // the latest event time seen
+ long clock = Long.MIN_VALUE;
+
+ long numEvents = 0;
+ long numLate = 0;
+ long numMalformed = 0;
+ long numDecisions = 0;
+ long numRetracted = 0;
+
+ // Add an event to the state of its ip and update the pairs it affects
+ void process(String uid, String ip, long t) throws IOException {
+   numEvents++;
+   if(t > clock)
+     clock = t;
+   if(t < clock - horizon) {
+     numLate++;
+     return;
+   }
+   String key = prefix.isExact() ? ip : prefix.subnet(ip);
+   IPState state = ips.get(key);
+   if(state == null) {
+     state = new IPState();
+     ips.put(key, state);
+   }
+   evict(state, clock - horizon);
+
+   UserWindow user = state.users.get(uid);
+   if(user == null) {
+     user = new UserWindow(uid);
+     state.users.put(uid, user);
+   }
+   boolean wasLazy = user.isLazy();
+   int pos = user.add(t);
+   state.add(t, user);
+
+   // the pairs that can change: the similar pairs of the user, and the
+   // users near the new point, or near any point if the type changed
+   LinkedHashSet<UserWindow> affected = new LinkedHashSet<UserWindow>(user.similar.keySet());
+   if(wasLazy != user.isLazy())
+     addNeighbors(state, user, user.from, user.to, affected);
+   else addNeighbors(state, user, pos, pos + 1, affected);
+   for(UserWindow other : affected) {
+     if(other != user)
+       evaluate(user, other);
+   }
+
+   if(numEvents % sweepEvents == 0)
+     sweep();
+ }
+
+ // Evict the points of an ip that are older than cutoff, and retract the
+ // pairs that are no longer similar
+ void evict(IPState state, long cutoff) throws IOException {
+   if(state.head == state.tail || state.times[state.head] >= cutoff)
+     return;
+   LinkedHashSet<UserWindow> touched = new LinkedHashSet<UserWindow>();
+   while(state.head < state.tail && state.times[state.head] < cutoff) {
+     // the oldest point of the ip is the oldest point of its user
+     UserWindow owner = state.owners[state.head];
+     state.owners[state.head] = null;
+     state.head++;
+     owner.removeFirst();
+     touched.add(owner);
+   }
+   for(UserWindow owner : touched) {
+     LinkedHashSet<UserWindow> affected = new LinkedHashSet<UserWindow>(owner.similar.keySet());
+     addNeighbors(state, owner, owner.from, owner.to, affected);
+     for(UserWindow other : affected) {
+       if(other != owner)
+         evaluate(owner, other);
+     }
+     if(owner.length() == 0)
+       state.users.remove(owner.uid);
+   }
+ }
+
+ // Add the users of an ip with a point within windowSize/2 of one of the
+ // points [from, to) of a user. The points are sorted, so the log of the
+ // ip is scanned once.
+ void addNeighbors(IPState state, UserWindow user, int from, int to,
+     Collection<UserWindow> out) {
+   long half = (long) Math.floor(windowSize / 2.0);
+   int k = state.head;
+   for(int p = from; p < to; p++) {
+     long t = user.points[p];
+     k = Math.max(k, state.lowerBound(t - half));
+     for(; k < state.tail && state.times[k] <= t + half; k++)
+       out.add(state.owners[k]);
+   }
+ }
+
+ // Evict the old points of all ips, including the ones without recent
+ // events, and drop the ips without users
+ void sweep() throws IOException {
+   Iterator<IPState> it = ips.values().iterator();
+   while(it.hasNext()) {
+     IPState state = it.next();
+     evict(state, clock - horizon);
+     if(state.users.isEmpty())
+       it.remove();
+   }
+   sLogger.info("events: " + numEvents + ", time: " + clock + ", ips: "
+       + ips.size() + ", pairs with evidence: " + pairs.size()
+       + ", decisions: " + numDecisions);
+ }
+
+ // Compare two users of an ip and update the evidence of the pair if it
+ // became similar or stopped being similar
+ void evaluate(UserWindow u, UserWindow v) throws IOException {
+   Boolean before = u.similar.get(v);
+   Boolean after = null;
+   if(u.length() > 0 && v.length() > 0 && u.isLazy() == v.isLazy()) {
+     boolean isLazy = u.isLazy();
+     double bar = isLazy ? simBarS : simBarL;
+     double sim = VectorUtils.vectorSimilarity(u.points, u.from, u.to,
+         v.points, v.from, v.to, windowSize, bar);
+     if(sim >= bar)
+       after = isLazy;
+   }
+   if(before == null ? after == null : before.equals(after))
+     return;
+
+   if(after == null) {
+     u.similar.remove(v);
+     v.similar.remove(u);
+   }
+   else {
+     u.similar.put(v, after);
+     v.similar.put(u, after);
+   }
+   judge(u.uid, v.uid, before, after);
+ }
+
+ // Update the evidence of a pair for a change on one ip, and write the
+ // decision if it changed
+ void judge(String uid1, String uid2, Boolean before, Boolean after)
+     throws IOException {
+   UserPairIDs pair = uid1.compareTo(uid2) < 0 ? new UserPairIDs(uid1, uid2)
+       : new UserPairIDs(uid2, uid1);
+   PairState state = pairs.get(pair);
+   if(state == null) {
+     state = new PairState();
+     pairs.put(pair, state);
+   }
+   if(before != null) {
+     if(before)
+       state.numSimS--;
+     else state.numSimL--;
+   }
+   if(after != null) {
+     if(after)
+       state.numSimS++;
+     else state.numSimL++;
+   }
+
+   boolean iSimL = state.numSimL > 0;
+   String decision = PairPrune.decision(iSimL, state.numSimS,
+       PairPrune.ipNumBar);
+   if(decision == null ? state.decision != null : !decision.equals(state.decision)) {
+     if(decision == null) {
+       PairPrune.emitRetraction(pair, output);
+       numRetracted++;
+     }
+     else {
+       PairPrune.emitDecision(pair, iSimL, state.numSimS,
+           PairPrune.ipNumBar, null, output);
+       numDecisions++;
+     }
+     state.decision = decision;
+   }
+   // a pair without evidence is not kept
+   if(state.numSimL == 0 && state.numSimS == 0)
+     pairs.remove(pair);
+ }
+
+ // Process the events of a reader until it ends
+ void readEvents(BufferedReader reader) throws IOException {
+   String line;
+   while((line = reader.readLine()) != null) {
+     int tab1 = line.indexOf('\t');
+     int tab2 = tab1 < 0 ? -1 : line.indexOf('\t', tab1 + 1);
+     if(tab2 < 0) {
+       numMalformed++;
+       continue;
+     }
+     int end = line.indexOf('\t', tab2 + 1);
+     long t;
+     try {
+       t = Long.parseLong(line.substring(tab2 + 1, end < 0 ? line.length() : end).trim());
+     } catch (NumberFormatException e) {
+       numMalformed++;
+       continue;
+     }
+     process(line.substring(0, tab1), line.substring(tab1 + 1, tab2), t);
+   }
+ }
+
+ // Open the event source: a local file, or host:port for a socket
+ static BufferedReader openSource(String source) throws IOException {
+   int colon = source.lastIndexOf(':');
+   if(!new File(source).exists() && colon > 0) {
+     Socket socket = new Socket(source.substring(0, colon),
+         Integer.parseInt(source.substring(colon + 1)));
+     sLogger.info("reading events from " + socket.getRemoteSocketAddress());
+     return new BufferedReader(new InputStreamReader(socket.getInputStream()));
+   }
+   return new BufferedReader(new FileReader(source));
+ }
+
+ public int run(String[] args) throws Exception {
+   if (args.length < 2) {
+     System.err.println(
+         "Not enough arguments!\nRun as:\n"
+         + "hadoop jar PairSim.jar StreamEngine [options] "
+         + "INPUT OUTPUT_FILE\n\n"
+
+         + "Available options are as below:\n"
+         + "ipps.windowSize, ipps.tvLenBar, ipps.tvSimBarL, ipps.tvSimBarS, "
+         + "ipps.ipv4Prefix and ipps.ipv6Prefix of PairSim, and the ippp.* "
+         + "options of PairPrune except ippp.adjacency\n"
+         + "ipst.horizon\thow long the time points of a user are kept, in "
+         + "seconds (default 86400)\n"
+         + "ipst.sweepEvents\tnumber of events between evictions on all ips "
+         + "(default 100000)\n\n"
+
+         + "INPUT is a local file, e.g. /dev/stdin, or host:port for a "
+         + "socket; OUTPUT_FILE a local file, e.g. /dev/stdout\n"
+         + "Input format: uid\tip\ttimestamp\n"
+         + "Output format: uid1\tuid2\tB|L|S|N\n"
+      );
+     return 1;
+   }
+
+   Configuration configuration = getConf();
+   JobConf conf = new JobConf(configuration, StreamEngine.class);
+   horizon = conf.getLong("ipst.horizon", 86400);
+   sweepEvents = Math.max(1, conf.getInt("ipst.sweepEvents", 100000));
+   windowSize = conf.getInt("ipps.windowSize", 3600);
+   tvLenBar = conf.getInt("ipps.tvLenBar", 5);
+   PairPrune.loadParameters(conf);
+   simBarL = Math.max(conf.getFloat("ipps.tvSimBarL", 0.7f), PairPrune.tvSimBarL);
+   simBarS = Math.max(conf.getFloat("ipps.tvSimBarS", 0.6f), PairPrune.tvSimBarS);
+   prefix = IPPrefix.fromConf(conf);
+   sLogger.info("windowSize: " + windowSize + ", tvLenBar: " + tvLenBar
+       + ", simBarL: " + simBarL + ", simBarS: " + simBarS
+       + ", ipNumBar: " + PairPrune.ipNumBar + ", horizon: " + horizon);
+
+   // decisions are flushed right away, they are the point of streaming
+   final Writer writer = new BufferedWriter(new FileWriter(args[1]));
+   output = new OutputCollector<NullWritable, Text>() {
+     public void collect(NullWritable key, Text value) throws IOException {
+       writer.write(value.toString());
+       writer.write('\n');
+       writer.flush();
+     }
+   };
+
+   BufferedReader reader = openSource(args[0]);
+   try {
+     readEvents(reader);
+     // bring the ips without recent events up to the end of the stream
+     sweep();
+   } finally {
+     reader.close();
+     writer.close();
+   }
+   sLogger.info("events: " + numEvents + ", late events dropped: " + numLate
+       + ", malformed lines: " + numMalformed + ", decisions: " + numDecisions
+       + ", retracted: " + numRetracted);
+   return 0;
+ }
+
+ public static void main(String[] args) throws Exception {
+   // Let ToolRunner handle generic command-line options
+   int res = ToolRunner.run(new Configuration(), new StreamEngine(), args);
+   System.exit(res);
+ }
+}
@@ -0,0 +1,98 @@
+import java.util.*;
+import java.io.*;
+
+/*
+ * TimeBitset holds the time vectors of one IP group as bitsets of grid
+ * buckets, for the bitset kernel of PairSim.Reduce (ipps.bitsetGrid).
+ * The common elements of two users are then counted with a popcount of
+ * the intersection of their bitsets instead of the merge of
+ * VectorUtils.vectorSimilarity.
+ *
+ * The two kernels agree exactly when the time points are discretized:
+ * if every time point is a multiple of a grid step longer than
+ * window/2, two points are within window/2 of each other only if they
+ * are equal, and for strictly increasing vectors the merge then counts
+ * the points that the vectors share, one per bucket. A user whose
+ * vector is off the grid, has repeated time points or is too sparse
+ * for a bitset is not covered, and its pairs fall back to the merge.
+ */
+
+public class TimeBitset {
+  // the largest number of bitset words per time point; sparser vectors
+  // are cheaper to merge
+  static final int MAX_WORDS_PER_POINT = 4;
+
+  // the grid step of the time points
+  long grid;
+
+  // the length of each user's time vector
+  int[] lengths;
+
+  // the bits of the buckets of each user, bucket b at bit b % 64 of word
+  // b / 64 - firstWord[u]; null for the users that are not covered
+  long[][] words;
+  long[] firstWord;
+
+  public TimeBitset(List<UserActionProfile> users, long grid) {
+    int numUsers = users.size();
+    this.grid = grid;
+    this.lengths = new int[numUsers];
+    this.words = new long[numUsers][];
+    this.firstWord = new long[numUsers];
+    for(int u = 0; u < numUsers; u++) {
+      long[] v = users.get(u).getTimeVector();
+      lengths[u] = v.length;
+      encode(u, v);
+    }
+  }
+
+  // the bitset of user u, if its vector is strictly increasing on the grid
+  void encode(int u, long[] v) {
+    if(v.length == 0)
+      return;
+    for(int k = 0; k < v.length; k++) {
+      if(Math.floorMod(v[k], grid) != 0 || (k > 0 && v[k] <= v[k - 1]))
+        return;
+    }
+    long first = Math.floorDiv(Math.floorDiv(v[0], grid), 64L);
+    long last = Math.floorDiv(Math.floorDiv(v[v.length - 1], grid), 64L);
+    if(last - first + 1 > (long) MAX_WORDS_PER_POINT * v.length)
+      return;
+    long[] bits = new long[(int) (last - first + 1)];
+    for(long t : v) {
+      long bucket = Math.floorDiv(t, grid);
+      bits[(int) (Math.floorDiv(bucket, 64L) - first)] |= 1L << Math.floorMod(bucket, 64L);
+    }
+    words[u] = bits;
+    firstWord[u] = first;
+  }
+
+  // Whether the pairs of user u can be compared with the bitset kernel
+  public boolean covers(int u) {
+    return words[u] != null;
+  }
+
+  // The similarity of the covered users i and j, the same value as
+  // VectorUtils.vectorSimilarity(v1, v2, window, bar) if it reaches bar,
+  // and PRUNED_BY_BOUND otherwise
+  public double similarity(int i, int j, double bar) {
+    long[] a = words[i];
+    long[] b = words[j];
+    long from = Math.max(firstWord[i], firstWord[j]);
+    long to = Math.min(firstWord[i] + a.length, firstWord[j] + b.length);
+    int commons = 0;
+    for(long w = from; w < to; w++) {
+      commons += Long.bitCount(a[(int) (w - firstWord[i])]
+          & b[(int) (w - firstWord[j])]);
+    }
+    int minLen = Math.min(lengths[i], lengths[j]);
+    if(commons < VectorUtils.minCommons(bar, minLen))
+      return VectorUtils.PRUNED_BY_BOUND;
+    return (double) commons / Math.min((double) lengths[i], (double) lengths[j]);
+  }
+
+  // Whether the bitset kernel agrees with the merge for the window
+  public static boolean isExact(long grid, double window) {
+    return grid > 0 && grid > window / 2.0;
+  }
+}
@@ -1,6 +1,8 @@
 import java.util.*;
 import java.io.*;
 
+import org.apache.hadoop.io.*;
+
 /* 
  * User action profile is the data structure designed to 
  * store the user history on a particular ip address. It
@@ -8,22 +10,62 @@ import java.io.*;
  * the ip address
  */
 
-public class UserActionProfile {
+public class UserActionProfile implements Writable {
   String userid;
-  Vector<Long> timeVector;
+  long[] timeVector;
   
+  // Used by Hadoop to instantiate the profile before readFields
+  public UserActionProfile() {
+    this.userid = "";
+    this.timeVector = new long[0];
+  }
+
+  // "<uid>\t<timearr>", see toString()
   public UserActionProfile(String in) {
-    Scanner scanin = new Scanner(in);
-    this.userid = scanin.next();
-    String timearr = scanin.next();
-    this.timeVector = VectorUtils.string2Vector(timearr);
+    int tab = in.indexOf('\t');
+    this.userid = in.substring(0, tab);
+    this.timeVector = VectorUtils.string2Vector(in.substring(tab + 1).trim());
   }
   
-  public UserActionProfile(String id, Vector<Long> v) {
+  public UserActionProfile(String id, long[] v) {
+    this.userid = id;
+    this.timeVector = v;
+  }
+
+  // Reset the profile, so that a mapper can reuse it for every record
+  public void set(String id, long[] v) {
     this.userid = id;
     this.timeVector = v;
   }
 
+  // Binary format: the user id, the vector length, then the time
+  // points as variable-length deltas from the previous point. Time
+  // vectors are sorted, so the deltas are small and usually take one
+  // or two bytes each.
+  public void write(DataOutput out) throws IOException {
+    Text.writeString(out, this.userid);
+    WritableUtils.writeVInt(out, this.timeVector.length);
+    long prev = 0;
+    for(int i = 0; i < this.timeVector.length; i++) {
+      WritableUtils.writeVLong(out, this.timeVector[i] - prev);
+      prev = this.timeVector[i];
+    }
+  }
+
+  // A fresh array is allocated on every call, so the profile that
+  // Hadoop reuses across values never aliases a previously read vector
+  public void readFields(DataInput in) throws IOException {
+    this.userid = Text.readString(in);
+    int len = WritableUtils.readVInt(in);
+    long[] v = new long[len];
+    long prev = 0;
+    for(int i = 0; i < len; i++) {
+      prev += WritableUtils.readVLong(in);
+      v[i] = prev;
+    }
+    this.timeVector = v;
+  }
+
   // Get the string representation of the user action profile
   // the userid and the time vector (string) is separated by
   // a Tab
@@ -37,7 +79,7 @@ public class UserActionProfile {
     return this.userid;
   }
 
-  public Vector<Long> getTimeVector() {
+  public long[] getTimeVector() {
     return this.timeVector;
   }
 
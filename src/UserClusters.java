@@ -0,0 +1,501 @@
+import java.io.IOException;
+import java.util.*;
+import java.io.*;
+
+import org.apache.hadoop.fs.*;
+import org.apache.hadoop.conf.*;
+import org.apache.hadoop.io.*;
+import org.apache.hadoop.mapred.*;
+import org.apache.hadoop.mapred.lib.*;
+import org.apache.hadoop.util.*;
+import org.apache.log4j.Logger;
+
+/*
+ * UserClusters groups the user pairs judged by PairPrune into clusters
+ * of synchronized users: the connected components of the graph whose
+ * edges are the "uid1\tuid2\tB|L|S" lines of PairPrune. Only the edge
+ * types listed in ipuc.edgeTypes are used, e.g. "B" for the pairs with
+ * both kinds of evidence.
+ *
+ * When the edge list is small enough (ipuc.inMemoryMB) the components
+ * are found with union-find in the driver. Otherwise they are found by
+ * min-label propagation over MapReduce: every user starts with the
+ * smallest uid among itself and its neighbours, and each pass sends the
+ * label of a user to its neighbours and keeps the smallest one, until
+ * no label changes. A last pass groups the users by label.
+ *
+ * Both paths name a cluster by its smallest uid, so they give the same
+ * output.
+ *
+ * Output: "cluster_id\tsize\tuid1,uid2,..." with the members sorted
+ */
+
+public class UserClusters extends Configured implements Tool {
+
+ // use log4j for logging
+ private static final Logger sLogger = Logger.getLogger(UserClusters.class);
+
+ // the edge types of PairPrune that connect users
+ public static String edgeTypes = "B,L,S";
+
+ // the minimum number of users of a cluster in the output
+ public static int minSize = 2;
+
+ // number of reducers
+ public static int reducers = 100;
+
+ // the maximum number of label propagation passes
+ public static int maxIterations = 50;
+
+ // edge lists up to this size are clustered in memory, in MB
+ public static int inMemoryMB = 64;
+
+ // the edge types as a set, loaded with the parameters
+ static HashSet<String> types = new HashSet<String>();
+
+ // load the parameters of the map and reduce tasks
+ static void loadParameters(JobConf conf) {
+   edgeTypes = conf.get("ipuc.edgeTypes", "B,L,S");
+   minSize = conf.getInt("ipuc.minSize", 2);
+   types = new HashSet<String>(Arrays.asList(edgeTypes.split(",")));
+ }
+
+ // The two users of a PairPrune line if its edge type is used, or null.
+ // Audit ips after the edge type are ignored.
+ static String[] parseEdge(String line) {
+   String[] parts = line.split("\t");
+   if(parts.length < 3 || !types.contains(parts[2]))
+     return null;
+   if(parts[0].equals(parts[1]))
+     return null;
+   return parts;
+ }
+
+ // Build the adjacency list of every user; the initial label of a user
+ // is the smallest uid among itself and its neighbours
+ public static class EdgeMap
+   extends MapReduceBase
+   implements Mapper<LongWritable, Text, Text, Text> {
+
+      Text outkey = new Text();
+      Text outvalue = new Text();
+
+      public void configure(JobConf conf) {
+        loadParameters(conf);
+      }
+
+      public void map(
+        LongWritable key,
+        Text value,
+        OutputCollector<Text, Text> output,
+        Reporter reporter
+      ) throws IOException {
+        String[] edge = parseEdge(value.toString());
+        if(edge == null)
+          return;
+        outkey.set(edge[0]);
+        outvalue.set(edge[1]);
+        output.collect(outkey, outvalue);
+        outkey.set(edge[1]);
+        outvalue.set(edge[0]);
+        output.collect(outkey, outvalue);
+        reporter.incrCounter("IPUC Stats", "Edges", 1);
+      }
+ }
+
+ public static class EdgeReduce
+    extends MapReduceBase implements Reducer<Text, Text, Text, Text> {
+
+    public void reduce(
+      Text key,
+      Iterator<Text> values,
+      OutputCollector<Text, Text> output,
+      Reporter reporter
+    ) throws IOException {
+      String uid = key.toString();
+      // PairPrune may emit a pair more than once
+      TreeSet<String> neighbours = new TreeSet<String>();
+      while(values.hasNext())
+        neighbours.add(values.next().toString());
+      String label = uid.compareTo(neighbours.first()) < 0 ? uid : neighbours.first();
+      output.collect(key, new Text(label + "\t" + join(neighbours)));
+      reporter.incrCounter("IPUC Stats", "Users", 1);
+    }
+ }
+
+ // Node records are "uid\tlabel\tneighbours"; the reducer receives the
+ // record of the user tagged with 'N' and the labels of its neighbours
+ // tagged with 'L'
+ public static class PropagateMap
+   extends MapReduceBase
+   implements Mapper<Text, Text, Text, Text> {
+
+      Text outkey = new Text();
+      Text outvalue = new Text();
+
+      public void map(
+        Text key,
+        Text value,
+        OutputCollector<Text, Text> output,
+        Reporter reporter
+      ) throws IOException {
+        String node = value.toString();
+        int tab = node.indexOf('\t');
+        String label = node.substring(0, tab);
+        outvalue.set("N" + node);
+        output.collect(key, outvalue);
+        outvalue.set("L" + label);
+        for(String neighbour : node.substring(tab + 1).split(",")) {
+          outkey.set(neighbour);
+          output.collect(outkey, outvalue);
+        }
+        reporter.progress();
+      }
+ }
+
+ // Keeps the node record and only the smallest label sent to a user,
+ // so a user with many neighbours in one map task gets one label
+ public static class PropagateCombine
+    extends MapReduceBase implements Reducer<Text, Text, Text, Text> {
+
+    public void reduce(
+      Text key,
+      Iterator<Text> values,
+      OutputCollector<Text, Text> output,
+      Reporter reporter
+    ) throws IOException {
+      String minLabel = null;
+      while(values.hasNext()) {
+        String value = values.next().toString();
+        if(value.charAt(0) == 'N')
+          output.collect(key, new Text(value));
+        else if(minLabel == null || value.compareTo(minLabel) < 0)
+          minLabel = value;
+      }
+      if(minLabel != null)
+        output.collect(key, new Text(minLabel));
+    }
+ }
+
+ public static class PropagateReduce
+    extends MapReduceBase implements Reducer<Text, Text, Text, Text> {
+
+    public void reduce(
+      Text key,
+      Iterator<Text> values,
+      OutputCollector<Text, Text> output,
+      Reporter reporter
+    ) throws IOException {
+      String label = null;
+      String neighbours = null;
+      String minLabel = null;
+      while(values.hasNext()) {
+        String value = values.next().toString();
+        if(value.charAt(0) == 'N') {
+          int tab = value.indexOf('\t');
+          label = value.substring(1, tab);
+          neighbours = value.substring(tab + 1);
+        }
+        else {
+          String received = value.substring(1);
+          if(minLabel == null || received.compareTo(minLabel) < 0)
+            minLabel = received;
+        }
+      }
+      if(label == null)
+        throw new IOException("labels sent to unknown user " + key);
+      if(minLabel != null && minLabel.compareTo(label) < 0) {
+        label = minLabel;
+        reporter.incrCounter("IPUC Stats", "Labels changed", 1);
+      }
+      output.collect(key, new Text(label + "\t" + neighbours));
+    }
+ }
+
+ // Group the users by their final label
+ public static class ClusterMap
+   extends MapReduceBase
+   implements Mapper<Text, Text, Text, Text> {
+
+      Text outkey = new Text();
+
+      public void map(
+        Text key,
+        Text value,
+        OutputCollector<Text, Text> output,
+        Reporter reporter
+      ) throws IOException {
+        String node = value.toString();
+        outkey.set(node.substring(0, node.indexOf('\t')));
+        output.collect(outkey, key);
+      }
+ }
+
+ public static class ClusterReduce
+    extends MapReduceBase implements Reducer<Text, Text, NullWritable, Text> {
+
+    public void configure(JobConf conf) {
+      loadParameters(conf);
+    }
+
+    public void reduce(
+      Text key,
+      Iterator<Text> values,
+      OutputCollector<NullWritable, Text> output,
+      Reporter reporter
+    ) throws IOException {
+      TreeSet<String> members = new TreeSet<String>();
+      while(values.hasNext())
+        members.add(values.next().toString());
+      if(members.size() < minSize)
+        return;
+      output.collect(NullWritable.get(), new Text(
+          key.toString() + "\t" + members.size() + "\t" + join(members)));
+      reporter.incrCounter("IPUC Stats", "Clusters", 1);
+    }
+ }
+
+ static String join(Collection<String> uids) {
+   StringBuilder res = new StringBuilder();
+   for(String uid : uids) {
+     if(res.length() > 0)
+       res.append(',');
+     res.append(uid);
+   }
+   return res.toString();
+ }
+
+ // The data files of a job output directory, or the file itself
+ static Vector<Path> dataFiles(FileSystem fs, Path path) throws IOException {
+   Vector<Path> files = new Vector<Path>();
+   for(FileStatus status : fs.listStatus(path)) {
+     String name = status.getPath().getName();
+     if(status.isDir() || name.startsWith("_") || name.startsWith("."))
+       continue;
+     files.addElement(status.getPath());
+   }
+   return files;
+ }
+
+ // Union-find over the users of a small edge list
+ static class UnionFind {
+   HashMap<String, Integer> ids = new HashMap<String, Integer>();
+   Vector<String> uids = new Vector<String>();
+   int[] parent = new int[1024];
+
+   int id(String uid) {
+     Integer id = ids.get(uid);
+     if(id != null)
+       return id;
+     int n = uids.size();
+     if(n == parent.length)
+       parent = Arrays.copyOf(parent, n * 2);
+     parent[n] = n;
+     ids.put(uid, n);
+     uids.addElement(uid);
+     return n;
+   }
+
+   int find(int x) {
+     while(parent[x] != x) {
+       parent[x] = parent[parent[x]]; // path halving
+       x = parent[x];
+     }
+     return x;
+   }
+
+   void union(String a, String b) {
+     int ra = find(id(a));
+     int rb = find(id(b));
+     if(ra != rb)
+       parent[Math.max(ra, rb)] = Math.min(ra, rb);
+   }
+
+   // the members of every component, sorted, keyed by the smallest one
+   TreeMap<String, TreeSet<String>> components() {
+     HashMap<Integer, TreeSet<String>> byRoot = new HashMap<Integer, TreeSet<String>>();
+     for(int x = 0; x < uids.size(); x++) {
+       int root = find(x);
+       TreeSet<String> members = byRoot.get(root);
+       if(members == null) {
+         members = new TreeSet<String>();
+         byRoot.put(root, members);
+       }
+       members.add(uids.get(x));
+     }
+     TreeMap<String, TreeSet<String>> res = new TreeMap<String, TreeSet<String>>();
+     for(TreeSet<String> members : byRoot.values())
+       res.put(members.first(), members);
+     return res;
+   }
+ }
+
+ // Cluster the edge list in the driver and write a single part file
+ void clusterInMemory(JobConf conf, Path input, Path output) throws IOException {
+   FileSystem fs = input.getFileSystem(conf);
+   UnionFind uf = new UnionFind();
+   long edges = 0;
+   for(Path file : dataFiles(fs, input)) {
+     BufferedReader reader = new BufferedReader(
+         new InputStreamReader(fs.open(file)));
+     try {
+       String line;
+       while((line = reader.readLine()) != null) {
+         String[] edge = parseEdge(line);
+         if(edge == null)
+           continue;
+         uf.union(edge[0], edge[1]);
+         edges++;
+       }
+     } finally {
+       reader.close();
+     }
+   }
+
+   int clusters = 0;
+   FileSystem outFs = output.getFileSystem(conf);
+   outFs.mkdirs(output);
+   BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+       outFs.create(new Path(output, "part-00000"))));
+   try {
+     for(Map.Entry<String, TreeSet<String>> e : uf.components().entrySet()) {
+       TreeSet<String> members = e.getValue();
+       if(members.size() < minSize)
+         continue;
+       writer.write(e.getKey() + "\t" + members.size() + "\t" + join(members));
+       writer.newLine();
+       clusters++;
+     }
+   } finally {
+     writer.close();
+   }
+   sLogger.info("edges: " + edges + ", users: " + uf.uids.size()
+       + ", clusters: " + clusters);
+ }
+
+ // Cluster the edge list with label propagation over MapReduce
+ void clusterMapReduce(Configuration configuration, Path input, Path output)
+     throws IOException {
+   Path tmpDir = new Path(configuration.get("ipuc.tmpDir", output + "_labels"));
+   FileSystem fs = tmpDir.getFileSystem(configuration);
+   fs.delete(tmpDir, true);
+
+   // adjacency lists and initial labels
+   Path nodes = new Path(tmpDir, "iter0");
+   JobConf conf = new JobConf(configuration, UserClusters.class);
+   conf.setJobName("ip_user_clusters_init");
+   conf.setOutputKeyClass(Text.class);
+   conf.setOutputValueClass(Text.class);
+   conf.setMapperClass(EdgeMap.class);
+   conf.setReducerClass(EdgeReduce.class);
+   conf.setInputFormat(TextInputFormat.class);
+   conf.setOutputFormat(TextOutputFormat.class);
+   conf.setNumReduceTasks(reducers);
+   FileInputFormat.setInputPaths(conf, input);
+   FileOutputFormat.setOutputPath(conf, nodes);
+   JobClient.runJob(conf);
+
+   // propagate the labels until they are stable
+   boolean converged = false;
+   for(int iter = 1; iter <= maxIterations && !converged; iter++) {
+     Path next = new Path(tmpDir, "iter" + iter);
+     conf = new JobConf(configuration, UserClusters.class);
+     conf.setJobName("ip_user_clusters_iter" + iter);
+     conf.setOutputKeyClass(Text.class);
+     conf.setOutputValueClass(Text.class);
+     conf.setMapperClass(PropagateMap.class);
+     conf.setCombinerClass(PropagateCombine.class);
+     conf.setReducerClass(PropagateReduce.class);
+     conf.setInputFormat(KeyValueTextInputFormat.class);
+     conf.setOutputFormat(TextOutputFormat.class);
+     conf.setNumReduceTasks(reducers);
+     FileInputFormat.setInputPaths(conf, nodes);
+     FileOutputFormat.setOutputPath(conf, next);
+     RunningJob job = JobClient.runJob(conf);
+
+     long changed = job.getCounters().findCounter("IPUC Stats", "Labels changed").getCounter();
+     sLogger.info("iteration " + iter + ": labels changed " + changed);
+     converged = changed == 0;
+     fs.delete(nodes, true);
+     nodes = next;
+   }
+   if(!converged)
+     sLogger.warn("labels not stable after " + maxIterations
+         + " iterations, clusters may be split");
+
+   // group the users by label
+   conf = new JobConf(configuration, UserClusters.class);
+   conf.setJobName("ip_user_clusters");
+   conf.setMapOutputKeyClass(Text.class);
+   conf.setMapOutputValueClass(Text.class);
+   conf.setOutputKeyClass(NullWritable.class);
+   conf.setOutputValueClass(Text.class);
+   conf.setMapperClass(ClusterMap.class);
+   conf.setReducerClass(ClusterReduce.class);
+   conf.setInputFormat(KeyValueTextInputFormat.class);
+   conf.setOutputFormat(TextOutputFormat.class);
+   conf.setNumReduceTasks(reducers);
+   FileInputFormat.setInputPaths(conf, nodes);
+   FileOutputFormat.setOutputPath(conf, output);
+   JobClient.runJob(conf);
+
+   fs.delete(tmpDir, true);
+ }
+
+ public int run(String[] args) throws Exception {
+   if (args.length < 2) {
+     System.err.println(
+         "Not enough arguments!\nRun as:\n"
+         + "hadoop jar PairSim.jar UserClusters [options] "
+         + "INPUT_DIR OUTPUT_DIR\n\n"
+
+         + "Available options are as below:\n"
+         + "ipuc.edgeTypes\tcomma separated PairPrune edge types that connect "
+         + "users (default B,L,S)\n"
+         + "ipuc.minSize\tthe minimum number of users of a cluster "
+         + "(default 2)\n"
+         + "ipuc.inMemoryMB\tcluster edge lists up to this size in memory "
+         + "instead of with MapReduce (default 64, 0 to disable)\n"
+         + "ipuc.maxIterations\tthe maximum number of label propagation "
+         + "passes (default 50)\n"
+         + "ipuc.reducers\tnumber of reducers (default 100)\n"
+         + "ipuc.tmpDir\tdirectory of the intermediate labels (default "
+         + "OUTPUT_DIR_labels)\n\n"
+
+         + "Input format: uid1\tuid2\tB|L|S (the output of PairPrune)\n"
+         + "Output format: cluster_id\tsize\tuid1,uid2,...\n"
+      );
+     return 1;
+   }
+
+   Configuration configuration = getConf();
+   JobConf conf = new JobConf(configuration, UserClusters.class);
+   loadParameters(conf);
+   reducers = conf.getInt("ipuc.reducers", 100);
+   maxIterations = conf.getInt("ipuc.maxIterations", 50);
+   inMemoryMB = conf.getInt("ipuc.inMemoryMB", 64);
+
+   Path input = new Path(args[0]);
+   Path output = new Path(args[1]);
+
+   // clean the output directory
+   FileSystem fs = FileSystem.get(conf);
+   try {
+     fs.delete(output, true);
+   } catch (IOException e) {
+     System.err.println(e);
+   }
+
+   long inputSize = input.getFileSystem(conf).getContentSummary(input).getLength();
+   if(inputSize <= ((long) inMemoryMB << 20))
+     clusterInMemory(conf, input, output);
+   else clusterMapReduce(configuration, input, output);
+   return 0;
+ }
+
+ public static void main(String[] args) throws Exception {
+   // Let ToolRunner handle generic command-line options
+   int res = ToolRunner.run(new Configuration(), new UserClusters(), args);
+   System.exit(res);
+ }
+}
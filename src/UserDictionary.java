@@ -0,0 +1,313 @@
+import java.io.IOException;
+import java.util.*;
+import java.io.*;
+
+import org.apache.hadoop.fs.*;
+import org.apache.hadoop.conf.*;
+import org.apache.hadoop.io.*;
+import org.apache.hadoop.mapred.*;
+import org.apache.hadoop.mapred.lib.*;
+import org.apache.hadoop.util.*;
+import org.apache.log4j.Logger;
+
+/*
+ * UserDictionary maps user ids to dense ints and back, so that the
+ * pipeline can run on short numeric ids and PairPrune can shuffle its
+ * pairs as packed 64-bit keys (PairKey, ippp.dictionary).
+ *
+ * encode reads the input of PairSim, gives every distinct user an id
+ * and writes the input with the ids in place of the user ids, and the
+ * dictionary "uid\tid". The reduce task p of n numbers its users
+ * p, p + n, p + 2n, ..., so the ids are unique without a second pass.
+ *
+ * decode replaces the ids in the first two columns of tab separated
+ * lines, such as the output of PairPrune, with the user ids. It joins
+ * the lines with the dictionary once per column. The join is a
+ * secondary sort: the map output is keyed by "id\tD" for the dictionary
+ * entry and "id\tP" for the lines, partitioned and grouped by the id
+ * alone, so the entry of an id reaches the reducer before its lines
+ * and the lines are decoded as they stream by.
+ */
+
+public class UserDictionary extends Configured implements Tool {
+
+ // use log4j for logging
+ private static final Logger sLogger = Logger.getLogger(UserDictionary.class);
+
+ // number of reducers
+ public static int reducers = 100;
+
+ // Number the users of this task and write the records with their ids
+ public static class EncodeReduce
+    extends MapReduceBase implements Reducer<Text, Text, Text, Text> {
+
+    MultipleOutputs outputs;
+    long next;
+    int numTasks;
+
+    public void configure(JobConf conf) {
+      outputs = new MultipleOutputs(conf);
+      next = conf.getInt("mapred.task.partition", 0);
+      numTasks = Math.max(1, conf.getNumReduceTasks());
+    }
+
+    public void close() throws IOException {
+      outputs.close();
+    }
+
+    public void reduce(
+      Text key,
+      Iterator<Text> values,
+      OutputCollector<Text, Text> output,
+      Reporter reporter
+    ) throws IOException {
+      if(next > Integer.MAX_VALUE)
+        throw new IOException("too many users for int ids at " + key);
+      Text id = new Text(Long.toString(next));
+      next += numTasks;
+
+      // MultipleOutputs only hands out raw collectors
+      @SuppressWarnings("unchecked")
+      OutputCollector<Text, Text> dictionary =
+          outputs.getCollector("dictionary", reporter);
+      dictionary.collect(key, id);
+      while(values.hasNext())
+        output.collect(id, values.next());
+      reporter.incrCounter("IPUD Stats", "Users", 1);
+    }
+ }
+
+ // Dictionary entries "uid\tid", keyed by "id\tD"
+ public static class DictionaryMap
+   extends MapReduceBase
+   implements Mapper<Text, Text, Text, Text> {
+
+      Text outkey = new Text();
+
+      public void map(
+        Text key,
+        Text value,
+        OutputCollector<Text, Text> output,
+        Reporter reporter
+      ) throws IOException {
+        outkey.set(value.toString() + "\tD");
+        output.collect(outkey, new Text("D" + key.toString()));
+      }
+ }
+
+ // Lines to decode, keyed by "id\tP" for the id in column ipud.column
+ public static class LineMap
+   extends MapReduceBase
+   implements Mapper<LongWritable, Text, Text, Text> {
+
+      int column = 0;
+      Text outkey = new Text();
+
+      public void configure(JobConf conf) {
+        column = conf.getInt("ipud.column", 0);
+      }
+
+      public void map(
+        LongWritable key,
+        Text value,
+        OutputCollector<Text, Text> output,
+        Reporter reporter
+      ) throws IOException {
+        String line = value.toString();
+        int[] bounds = column(line, column);
+        outkey.set(line.substring(bounds[0], bounds[1]) + "\tP");
+        output.collect(outkey, new Text("P" + line));
+      }
+ }
+
+ // Replace the id in column ipud.column of the lines of one id
+ public static class DecodeReduce
+    extends MapReduceBase implements Reducer<Text, Text, NullWritable, Text> {
+
+    int column = 0;
+    Text outvalue = new Text();
+
+    public void configure(JobConf conf) {
+      column = conf.getInt("ipud.column", 0);
+    }
+
+    public void reduce(
+      Text key,
+      Iterator<Text> values,
+      OutputCollector<NullWritable, Text> output,
+      Reporter reporter
+    ) throws IOException {
+      // the secondary sort puts the dictionary entry of the id first
+      String uid = null;
+      int numLines = 0;
+      while(values.hasNext()) {
+        String value = values.next().toString();
+        if(value.charAt(0) == 'D') {
+          uid = value.substring(1);
+          continue;
+        }
+        if(uid == null)
+          throw new IOException("no dictionary entry for id " + idOf(key));
+        String line = value.substring(1);
+        int[] bounds = column(line, column);
+        outvalue.set(line.substring(0, bounds[0]) + uid + line.substring(bounds[1]));
+        output.collect(NullWritable.get(), outvalue);
+        numLines++;
+      }
+      reporter.incrCounter("IPUD Stats", "Lines decoded", numLines);
+    }
+ }
+
+ // Partition the "id\tD|P" keys of decode by the id alone
+ public static class DecodePartitioner implements Partitioner<Text, Text> {
+
+    public void configure(JobConf conf) {
+    }
+
+    public int getPartition(Text key, Text value, int numPartitions) {
+      int hash = WritableComparator.hashBytes(key.getBytes(), key.getLength() - 2);
+      return (hash & Integer.MAX_VALUE) % numPartitions;
+    }
+ }
+
+ // Group the "id\tD|P" keys of decode by the id alone. The keys sort as
+ // Text, so the entry "id\tD" comes before the lines "id\tP".
+ public static class IDComparator extends WritableComparator {
+    public IDComparator() {
+      super(Text.class);
+    }
+
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+      int n1 = WritableUtils.decodeVIntSize(b1[s1]);
+      int n2 = WritableUtils.decodeVIntSize(b2[s2]);
+      return compareBytes(b1, s1 + n1, l1 - n1 - 2, b2, s2 + n2, l2 - n2 - 2);
+    }
+
+    // the reducer groups the deserialized keys; WritableComparator
+    // declares this method with raw types
+    @SuppressWarnings("rawtypes")
+    public int compare(WritableComparable a, WritableComparable b) {
+      Text t1 = (Text) a;
+      Text t2 = (Text) b;
+      return compareBytes(t1.getBytes(), 0, t1.getLength() - 2,
+          t2.getBytes(), 0, t2.getLength() - 2);
+    }
+ }
+
+ // The id of a "id\tD|P" key
+ static String idOf(Text key) {
+   String s = key.toString();
+   return s.substring(0, s.length() - 2);
+ }
+
+ // The start and end of the tab separated column of a line
+ static int[] column(String line, int column) throws IOException {
+   int start = 0;
+   for(int c = 0; c < column; c++) {
+     start = line.indexOf('\t', start) + 1;
+     if(start == 0)
+       throw new IOException("missing column " + column + ": " + line);
+   }
+   int end = line.indexOf('\t', start);
+   return new int[] {start, end < 0 ? line.length() : end};
+ }
+
+ // Encode the user ids of the PairSim input in inputDir. The records are
+ // written to outputDir and the dictionary to dictionaryDir.
+ public static void encode(Configuration configuration, Path inputDir,
+     Path dictionaryDir, Path outputDir) throws IOException {
+   JobConf conf = new JobConf(configuration, UserDictionary.class);
+   conf.setJobName("ip_action_user_dictionary");
+   conf.setMapOutputKeyClass(Text.class);
+   conf.setMapOutputValueClass(Text.class);
+   conf.setOutputKeyClass(Text.class);
+   conf.setOutputValueClass(Text.class);
+   conf.setMapperClass(IdentityMapper.class);
+   conf.setReducerClass(EncodeReduce.class);
+   conf.setInputFormat(KeyValueTextInputFormat.class);
+   conf.setOutputFormat(TextOutputFormat.class);
+   conf.setNumReduceTasks(conf.getInt("ipud.reducers", reducers));
+   MultipleOutputs.addNamedOutput(conf, "dictionary", TextOutputFormat.class,
+       Text.class, Text.class);
+
+   FileSystem fs = FileSystem.get(conf);
+   fs.delete(outputDir, true);
+   fs.delete(dictionaryDir, true);
+   FileInputFormat.setInputPaths(conf, inputDir);
+   FileOutputFormat.setOutputPath(conf, outputDir);
+   JobClient.runJob(conf);
+
+   // move the dictionary next to the records
+   fs.mkdirs(dictionaryDir);
+   FileStatus[] files = fs.globStatus(new Path(outputDir, "dictionary-r-*"));
+   if(files != null) {
+     for(FileStatus file : files)
+       fs.rename(file.getPath(), new Path(dictionaryDir, file.getPath().getName()));
+   }
+ }
+
+ // Decode the ids in the first two columns of the lines in inputDir
+ // with the dictionary in dictionaryDir
+ public static void decode(Configuration configuration, Path dictionaryDir,
+     Path inputDir, Path outputDir) throws IOException {
+   FileSystem fs = FileSystem.get(configuration);
+   Path tmpDir = new Path(outputDir.toString() + "_column0");
+   fs.delete(outputDir, true);
+   fs.delete(tmpDir, true);
+   for(int column = 0; column < 2; column++) {
+     JobConf conf = new JobConf(configuration, UserDictionary.class);
+     conf.setJobName("ip_action_user_dictionary_decode_" + column);
+     conf.setInt("ipud.column", column);
+     conf.setMapOutputKeyClass(Text.class);
+     conf.setMapOutputValueClass(Text.class);
+     conf.setOutputKeyClass(NullWritable.class);
+     conf.setOutputValueClass(Text.class);
+     conf.setPartitionerClass(DecodePartitioner.class);
+     conf.setOutputValueGroupingComparator(IDComparator.class);
+     conf.setReducerClass(DecodeReduce.class);
+     conf.setOutputFormat(TextOutputFormat.class);
+     conf.setNumReduceTasks(conf.getInt("ipud.reducers", reducers));
+     MultipleInputs.addInputPath(conf, new Path(dictionaryDir, "dictionary-r-*"),
+         KeyValueTextInputFormat.class, DictionaryMap.class);
+     MultipleInputs.addInputPath(conf, column == 0 ? inputDir : tmpDir,
+         TextInputFormat.class, LineMap.class);
+     FileOutputFormat.setOutputPath(conf, column == 0 ? tmpDir : outputDir);
+     JobClient.runJob(conf);
+   }
+   fs.delete(tmpDir, true);
+ }
+
+ public int run(String[] args) throws Exception {
+   if (args.length < 4 || !(args[0].equals("encode") || args[0].equals("decode"))) {
+     System.err.println(
+         "Not enough arguments!\nRun as:\n"
+         + "hadoop jar PairSim.jar UserDictionary [options] "
+         + "encode INPUT_DIR DICTIONARY_DIR OUTPUT_DIR\n"
+         + "hadoop jar PairSim.jar UserDictionary [options] "
+         + "decode DICTIONARY_DIR INPUT_DIR OUTPUT_DIR\n\n"
+
+         + "Available options are as below:\n"
+         + "ipud.reducers\tnumber of reducers (default 100)\n\n"
+
+         + "encode input format: uid\tip\ttimevector\n"
+         + "encode output format: id\tip\ttimevector, dictionary uid\tid\n"
+         + "decode input format: id1\tid2\t...\n"
+      );
+     return 1;
+   }
+
+   Configuration configuration = getConf();
+   if(args[0].equals("encode")) {
+     encode(configuration, new Path(args[1]), new Path(args[2]), new Path(args[3]));
+     sLogger.info("dictionary written to " + args[2]);
+   }
+   else decode(configuration, new Path(args[1]), new Path(args[2]), new Path(args[3]));
+   return 0;
+ }
+
+ public static void main(String[] args) throws Exception {
+   // Let ToolRunner handle generic command-line options
+   int res = ToolRunner.run(new Configuration(), new UserDictionary(), args);
+   System.exit(res);
+ }
+}
@@ -16,10 +16,13 @@ public class UserPair {
   // The string format of a user pair: 
   // "<uid1>,<uid2>,<sim>,<ip>,<isLazy>"
   public UserPair(String in) {
-    String[] parts = in.split(",");
-    this.userIDs = new UserPairIDs(parts[0], parts[1]);
-    this.similarity = new SimMetric(Double.parseDouble(parts[2]),
-			parts[3], parts[4].equals("T"));
+    int c1 = in.indexOf(',');
+    int c2 = in.indexOf(',', c1 + 1);
+    int c3 = in.indexOf(',', c2 + 1);
+    int c4 = in.indexOf(',', c3 + 1);
+    this.userIDs = new UserPairIDs(in.substring(0, c1), in.substring(c1 + 1, c2));
+    this.similarity = new SimMetric(Double.parseDouble(in.substring(c2 + 1, c3)),
+			in.substring(c3 + 1, c4), in.charAt(c4 + 1) == 'T');
   }
   
   public UserPair(String u1, String u2, double s, 
@@ -28,6 +31,12 @@ public class UserPair {
     this.similarity = new SimMetric(s, ip_addr, b);
   }
 
+  // Reset the pair, so that a reducer can reuse it for every pair
+  public void set(String u1, String u2, double s, String ip_addr, boolean b) {
+    this.userIDs.set(u1, u2);
+    this.similarity.set(s, ip_addr, b);
+  }
+
   // Get the string representation of a user pair
   // all parts are separated by commas
   public String toString(){
@@ -1,19 +1,74 @@
 import java.io.*;
 import java.util.*;
 
-public class UserPairIDs {
+import org.apache.hadoop.io.*;
+
+public class UserPairIDs implements WritableComparable<UserPairIDs> {
   String uid1;
   String uid2;
   
+  // Used by Hadoop to instantiate the key before readFields
+  public UserPairIDs() {
+    this.uid1 = "";
+    this.uid2 = "";
+  }
+
   public UserPairIDs(String s1, String s2) {
     this.uid1 = s1;
     this.uid2 = s2;
   }
  
   public UserPairIDs(String in) {
-    String[] parts = in.split(",");
-    this.uid1 = parts[0];
-    this.uid2 = parts[1];
+    int comma = in.indexOf(',');
+    int end = in.indexOf(',', comma + 1);
+    this.uid1 = in.substring(0, comma);
+    this.uid2 = end < 0 ? in.substring(comma + 1) : in.substring(comma + 1, end);
+  }
+
+  // Reset the pair, so that a mapper can reuse it for every record
+  public void set(String s1, String s2) {
+    this.uid1 = s1;
+    this.uid2 = s2;
+  }
+
+  // Put the smaller uid first, so that both orientations of a pair are
+  // the same key
+  public void canonicalize() {
+    if(this.uid1.compareTo(this.uid2) > 0) {
+      String uid = this.uid1;
+      this.uid1 = this.uid2;
+      this.uid2 = uid;
+    }
+  }
+
+  public void write(DataOutput out) throws IOException {
+    Text.writeString(out, this.uid1);
+    Text.writeString(out, this.uid2);
+  }
+
+  public void readFields(DataInput in) throws IOException {
+    this.uid1 = Text.readString(in);
+    this.uid2 = Text.readString(in);
+  }
+
+  public int compareTo(UserPairIDs other) {
+    int cmp = this.uid1.compareTo(other.uid1);
+    if(cmp != 0)
+      return cmp;
+    return this.uid2.compareTo(other.uid2);
+  }
+
+  public boolean equals(Object o) {
+    if(!(o instanceof UserPairIDs))
+      return false;
+    UserPairIDs other = (UserPairIDs) o;
+    return this.uid1.equals(other.uid1) && this.uid2.equals(other.uid2);
+  }
+
+  // String.hashCode is stable across JVMs, so this is safe to use
+  // with the default HashPartitioner
+  public int hashCode() {
+    return this.uid1.hashCode() * 31 + this.uid2.hashCode();
   }
  
   public String toString() {
@@ -32,4 +87,39 @@ public class UserPairIDs {
   public String getUID2() {
     return this.uid2;
   }
+
+  // Compares the serialized pairs without deserializing them: each uid is
+  // a vint length followed by its UTF-8 bytes, and comparing those bytes
+  // orders the uids like compareTo unless they hold characters beyond
+  // the BMP
+  public static class Comparator extends WritableComparator {
+    public Comparator() {
+      super(UserPairIDs.class);
+    }
+
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+      try {
+        int n1 = WritableUtils.decodeVIntSize(b1[s1]);
+        int n2 = WritableUtils.decodeVIntSize(b2[s2]);
+        int len1 = readVInt(b1, s1);
+        int len2 = readVInt(b2, s2);
+        int cmp = compareBytes(b1, s1 + n1, len1, b2, s2 + n2, len2);
+        if(cmp != 0)
+          return cmp;
+        s1 += n1 + len1;
+        s2 += n2 + len2;
+        n1 = WritableUtils.decodeVIntSize(b1[s1]);
+        n2 = WritableUtils.decodeVIntSize(b2[s2]);
+        len1 = readVInt(b1, s1);
+        len2 = readVInt(b2, s2);
+        return compareBytes(b1, s1 + n1, len1, b2, s2 + n2, len2);
+      } catch (IOException e) {
+        throw new IllegalArgumentException(e);
+      }
+    }
+  }
+
+  static {
+    WritableComparator.define(UserPairIDs.class, new Comparator());
+  }
 }
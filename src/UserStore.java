@@ -0,0 +1,212 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/*
+ * UserStore is a columnar store of the users of one PairSim group for
+ * groups that do not fit in the reducer heap. The user ids are kept in
+ * a dictionary on the heap, and the time points of all records in one
+ * long buffer with the offset and length of each record. Once the
+ * buffer exceeds its budget it is appended to a temporary file, which
+ * is mapped read-only for the comparison and deleted by close(), so the heap only holds the
+ * ids, the record offsets and a bounded buffer. PairSim.Reduce then
+ * loads the users block by block and compares the blocks pairwise.
+ *
+ * With merging, the records of the same user are chained and their
+ * time points are merged when the user is read, as for the records of
+ * a user on several ips of a subnet.
+ */
+
+public class UserStore {
+  // the largest mapped region of the spill file, in longs
+  static final int MAX_REGION = 1 << 27;
+
+  // the number of longs buffered on the heap before spilling
+  int bufferLongs;
+  boolean merge;
+
+  // user ids, their total length and the first and last of their records
+  Vector<String> ids = new Vector<String>();
+  HashMap<String, Integer> dictionary = new HashMap<String, Integer>();
+  int[] lengths = new int[1024];
+  int[] firstRecord = new int[1024];
+  int[] lastRecord = new int[1024];
+
+  // offset, length and next record of the same user of every record
+  long[] recordOffsets = new long[1024];
+  int[] recordLengths = new int[1024];
+  int[] nextRecord = new int[1024];
+  int numRecords = 0;
+
+  // time points that are not spilled yet; they start at bufferBase
+  long[] buffer;
+  int bufferSize = 0;
+  long bufferBase = 0;
+
+  // the spill file and its mapped regions
+  File file = null;
+  DataOutputStream spillOut = null;
+  RandomAccessFile spillIn = null;
+  LongBuffer[] regions = null;
+
+  public UserStore(long budgetBytes, boolean merge) {
+    this.bufferLongs = (int) Math.max(1024, Math.min(budgetBytes / 8, MAX_REGION));
+    this.buffer = new long[Math.min(bufferLongs, 1 << 16)];
+    this.merge = merge;
+  }
+
+  // Add a record of a user. Without merging every record is a new user.
+  public void add(String uid, long[] timeVector) throws IOException {
+    int u = -1;
+    if(merge) {
+      Integer known = dictionary.get(uid);
+      if(known != null)
+        u = known;
+    }
+    if(u < 0) {
+      u = ids.size();
+      ids.addElement(uid);
+      if(merge)
+        dictionary.put(uid, u);
+      if(u == lengths.length) {
+        lengths = Arrays.copyOf(lengths, 2 * u);
+        firstRecord = Arrays.copyOf(firstRecord, 2 * u);
+        lastRecord = Arrays.copyOf(lastRecord, 2 * u);
+      }
+      lengths[u] = 0;
+      firstRecord[u] = -1;
+    }
+
+    int r = numRecords++;
+    if(r == recordOffsets.length) {
+      recordOffsets = Arrays.copyOf(recordOffsets, 2 * r);
+      recordLengths = Arrays.copyOf(recordLengths, 2 * r);
+      nextRecord = Arrays.copyOf(nextRecord, 2 * r);
+    }
+    recordOffsets[r] = bufferBase + bufferSize;
+    recordLengths[r] = timeVector.length;
+    nextRecord[r] = -1;
+    if(firstRecord[u] < 0)
+      firstRecord[u] = r;
+    else nextRecord[lastRecord[u]] = r;
+    lastRecord[u] = r;
+    lengths[u] += timeVector.length;
+
+    for(long t : timeVector) {
+      if(bufferSize == buffer.length) {
+        if(bufferSize < bufferLongs)
+          buffer = Arrays.copyOf(buffer, Math.min(bufferLongs, 2 * bufferSize));
+        else spill();
+      }
+      buffer[bufferSize++] = t;
+    }
+  }
+
+  // append the buffer to the spill file
+  void spill() throws IOException {
+    if(spillOut == null) {
+      file = File.createTempFile("pairsim-users-", ".bin");
+      spillOut = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(file), 1 << 16));
+    }
+    for(int k = 0; k < bufferSize; k++)
+      spillOut.writeLong(buffer[k]);
+    bufferBase += bufferSize;
+    bufferSize = 0;
+  }
+
+  public boolean isSpilled() {
+    return file != null;
+  }
+
+  // the number of bytes written to the spill file
+  public long spilledBytes() {
+    return 8 * bufferBase;
+  }
+
+  public int size() {
+    return ids.size();
+  }
+
+  public String id(int u) {
+    return ids.get(u);
+  }
+
+  public int length(int u) {
+    return lengths[u];
+  }
+
+  // Map the spill file for reading; no user can be added afterwards
+  void finish() throws IOException {
+    if(spillOut == null || regions != null)
+      return;
+    // spill the rest, so that the buffer does not stay on the heap
+    spill();
+    buffer = new long[0];
+    spillOut.close();
+    spillIn = new RandomAccessFile(file, "r");
+    FileChannel channel = spillIn.getChannel();
+    int numRegions = (int) ((bufferBase + MAX_REGION - 1) / MAX_REGION);
+    regions = new LongBuffer[numRegions];
+    for(int k = 0; k < numRegions; k++) {
+      long start = (long) k * MAX_REGION;
+      long longs = Math.min(MAX_REGION, bufferBase - start);
+      regions[k] = channel.map(FileChannel.MapMode.READ_ONLY, 8 * start, 8 * longs)
+          .asLongBuffer();
+    }
+  }
+
+  // copy the time points [offset, offset+len) into out[pos, pos+len)
+  void read(long offset, int len, long[] out, int pos) {
+    while(len > 0 && offset < bufferBase) {
+      LongBuffer region = regions[(int) (offset / MAX_REGION)];
+      int start = (int) (offset % MAX_REGION);
+      int n = Math.min(len, region.limit() - start);
+      LongBuffer view = region.duplicate();
+      view.position(start);
+      view.get(out, pos, n);
+      offset += n;
+      pos += n;
+      len -= n;
+    }
+    if(len > 0)
+      System.arraycopy(buffer, (int) (offset - bufferBase), out, pos, len);
+  }
+
+  // The profile of user u, with the time points of all its records
+  public UserActionProfile get(int u) throws IOException {
+    finish();
+    long[] timeVector = null;
+    for(int r = firstRecord[u]; r >= 0; r = nextRecord[r]) {
+      long[] record = new long[recordLengths[r]];
+      read(recordOffsets[r], recordLengths[r], record, 0);
+      timeVector = timeVector == null ? record
+          : VectorUtils.mergeVectors(timeVector, record);
+    }
+    return new UserActionProfile(ids.get(u), timeVector);
+  }
+
+  // The profiles of the users users[from, to)
+  public Vector<UserActionProfile> load(int[] users, int from, int to)
+      throws IOException {
+    Vector<UserActionProfile> res = new Vector<UserActionProfile>(to - from);
+    for(int k = from; k < to; k++)
+      res.addElement(get(users[k]));
+    return res;
+  }
+
+  // Release the mapped file and delete it. PairSim.Reduce closes the
+  // store as soon as its group is done, even if the comparison failed,
+  // so the spill files of a task do not pile up until the JVM exits.
+  public void close() throws IOException {
+    regions = null;
+    if(spillOut != null)
+      spillOut.close();
+    if(spillIn != null)
+      spillIn.close();
+    if(file != null && file.exists() && !file.delete())
+      throw new IOException("cannot delete spill file " + file);
+    file = null;
+  }
+}
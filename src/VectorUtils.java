@@ -13,27 +13,182 @@ import java.lang.Math;
  */
 
 public class VectorUtils {
+
+  // Returned by the threshold-aware vectorSimilarity instead of a
+  // similarity when a pair is pruned. PRUNED_BY_RANGE means too few time
+  // points of one vector fall into the time range of the other one, and
+  // PRUNED_BY_BOUND means the merge was aborted because the remaining
+  // time points could no longer reach the threshold.
+  public static final double PRUNED_BY_RANGE = -1.0;
+  public static final double PRUNED_BY_BOUND = -2.0;
+
+  // the length ratio from which the threshold-aware kernel gallops
+  // through the longer vector instead of stepping through it
+  static final int GALLOP_RATIO = 16;
   
   // The string format of a vector: "t1,t2,..."
   // Time points in the vector are seperated by commas
   // The hive-based data pipeline has already converted the vectors to
   // this format.
-  public static Vector<Long> string2Vector(String str) {
-    String[] parts = str.split(",");
-    Vector<Long> v = new Vector<Long>();
-    for(String part : parts) {
-      v.addElement(Long.parseLong(part));
+  //
+  // Time vectors are kept as primitive long arrays so that a reducer
+  // holding tens of thousands of users does not pay for one boxed Long
+  // per time point, and the similarity loop below reads the elements
+  // without unboxing or synchronization.
+  public static long[] string2Vector(String str) {
+    // trailing commas are dropped, as String.split drops them
+    int len = str.length();
+    while(len > 0 && str.charAt(len - 1) == ',')
+      len--;
+    int n = 1;
+    for(int k = 0; k < len; k++) {
+      if(str.charAt(k) == ',')
+        n++;
+    }
+    long[] v = new long[n];
+    n = 0;
+    int start = 0;
+    for(int k = 0; k <= len; k++) {
+      if(k == len || str.charAt(k) == ',') {
+        v[n++] = parseLong(str, start, k);
+        start = k + 1;
+      }
     }
     return v;
   }
 
+  // Parse the decimal number in str[start, end) without creating a
+  // substring. Like Long.parseLong, the number is accumulated
+  // negatively, so that Long.MIN_VALUE parses too.
+  static long parseLong(CharSequence str, int start, int end) {
+    boolean negative = start < end && str.charAt(start) == '-';
+    int k = start < end && (negative || str.charAt(start) == '+') ? start + 1 : start;
+    if(k >= end)
+      throw new NumberFormatException("empty time point in \"" + str + "\"");
+    long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+    long value = 0;
+    for(; k < end; k++) {
+      int digit = str.charAt(k) - '0';
+      if(digit < 0 || digit > 9)
+        throw new NumberFormatException("bad time point in \"" + str + "\"");
+      if(value < (limit + digit) / 10)
+        throw new NumberFormatException("time point out of range in \"" + str + "\"");
+      value = value * 10 - digit;
+    }
+    return negative ? value : -value;
+  }
+
+  // The end of the vector in bytes[start, end) without its trailing
+  // commas, which String.split drops
+  static int trimCommas(byte[] bytes, int start, int end) {
+    while(end > start && bytes[end - 1] == ',')
+      end--;
+    return end;
+  }
+
+  // Count the time points of the vector "t1,t2,..." stored in the UTF-8
+  // bytes[start, end), e.g. the backing array of a Text, without
+  // parsing it
+  public static int countElements(byte[] bytes, int start, int end) {
+    end = trimCommas(bytes, start, end);
+    if(end <= start)
+      return 0;
+    int n = 1;
+    for(int k = start; k < end; k++) {
+      if(bytes[k] == ',')
+        n++;
+    }
+    return n;
+  }
+
+  // Parse the vector stored in bytes[start, end) in place into out,
+  // which needs room for countElements(bytes, start, end) time points.
+  // Returns the number of time points.
+  public static int parseVector(byte[] bytes, int start, int end, long[] out) {
+    end = trimCommas(bytes, start, end);
+    int n = 0;
+    long value = 0;
+    boolean negative = false;
+    boolean signed = false;
+    int digits = 0;
+    for(int k = start; k <= end; k++) {
+      if(k == end || bytes[k] == ',') {
+        if(digits == 0)
+          throw new NumberFormatException("empty time point at byte " + k);
+        out[n++] = negative ? value : -value;
+        value = 0;
+        negative = false;
+        signed = false;
+        digits = 0;
+      }
+      else if((bytes[k] == '-' || bytes[k] == '+') && digits == 0 && !signed) {
+        negative = bytes[k] == '-';
+        signed = true;
+      }
+      else {
+        // accumulated negatively, as in parseLong
+        int digit = bytes[k] - '0';
+        if(digit < 0 || digit > 9)
+          throw new NumberFormatException("bad time point at byte " + k);
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        if(value < (limit + digit) / 10)
+          throw new NumberFormatException("time point out of range at byte " + k);
+        value = value * 10 - digit;
+        digits++;
+      }
+    }
+    return n;
+  }
+
+  // exact powers of ten as doubles
+  static final double[] POWERS_OF_TEN = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+    1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+  };
+
+  // Parse the decimal number "[-]d*[.d*]" in the UTF-8 bytes[start, end)
+  // without creating a String. A mantissa below 2^53 with at most 22
+  // decimals is divided by an exact power of ten, which rounds like
+  // Double.parseDouble; anything else, such as an exponent, is handed
+  // to Double.parseDouble.
+  public static double parseDouble(byte[] bytes, int start, int end) {
+    boolean negative = start < end && bytes[start] == '-';
+    long mantissa = 0;
+    int decimals = -1;
+    int digits = 0;
+    int k;
+    for(k = negative ? start + 1 : start; k < end; k++) {
+      int digit = bytes[k] - '0';
+      if(digit >= 0 && digit <= 9) {
+        if(mantissa >= (1L << 53) / 10)
+          break;
+        mantissa = mantissa * 10 + digit;
+        digits++;
+        if(decimals >= 0)
+          decimals++;
+      }
+      else if(bytes[k] == '.' && decimals < 0)
+        decimals = 0;
+      else break;
+    }
+    if(k < end || digits == 0 || decimals >= POWERS_OF_TEN.length) {
+      try {
+        return Double.parseDouble(new String(bytes, start, end - start, "UTF-8"));
+      } catch (UnsupportedEncodingException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+    double value = decimals > 0 ? mantissa / POWERS_OF_TEN[decimals] : mantissa;
+    return negative ? -value : value;
+  }
+
   // Convert a vector to a string according to our string represenation
-  public static String vector2String(Vector<Long> v) {
+  public static String vector2String(long[] v) {
     StringBuilder result = new StringBuilder();
     char delim = ',';
-    for(int i = 0; i < v.size(); i++) {
-      result.append(v.get(i));
-      if(i < v.size() - 1) {
+    for(int i = 0; i < v.length; i++) {
+      result.append(v[i]);
+      if(i < v.length - 1) {
         result.append(delim);
       }
     }
@@ -49,17 +204,17 @@ public class VectorUtils {
   // and v2. We normalize the nubmer of common elements by the length of
   // the shorter vector. The ratio is used as the similarity metric for
   // time vectors.
-  public static double vectorSimilarity(Vector<Long> v1, Vector<Long> v2,
+  public static double vectorSimilarity(long[] v1, long[] v2,
       double window) {
-    int len1 = v1.size();
-    int len2 = v2.size();
+    int len1 = v1.length;
+    int len2 = v2.length;
     assert len1 > 0 && len2 > 0: "Error: empty vector";
     int commons = 0; 
     int i = 0;
     int j = 0;
     while(i < len1 && j < len2) {
-      long item1 = v1.get(i);
-      long item2 = v2.get(j);
+      long item1 = v1[i];
+      long item2 = v2[j];
       if(Math.abs(item1 - item2) <= window/2.0) {  // item1 and item2 are in the same window
         commons += 1; // increment the number of common items
         i += 1; // the pointer of v1 moves one step forward
@@ -76,4 +231,189 @@ public class VectorUtils {
     double similarity = (double) commons / Math.min((double) len1,  (double) len2);
     return similarity;
   }
+
+  // Threshold-aware vector similarity
+  //
+  // Returns the same value as vectorSimilarity(v1, v2, window) if that
+  // value can reach bar, and PRUNED_BY_RANGE or PRUNED_BY_BOUND if it is
+  // known to stay below bar. Since the similarity is normalized by the
+  // shorter length, the lengths alone never rule a pair out; instead we
+  // count the time points of each vector that fall into the time range
+  // of the other one (widened by window/2), which bounds the number of
+  // common elements before the merge starts. During the merge we stop as
+  // soon as the common elements found so far plus the elements left in
+  // the shorter remainder fall below the number that bar requires. The
+  // merge is never cut short on success, because callers need the exact
+  // similarity.
+  public static double vectorSimilarity(long[] v1, long[] v2,
+      double window, double bar) {
+    return vectorSimilarity(v1, 0, v1.length, v2, 0, v2.length, window, bar);
+  }
+
+  // The threshold-aware similarity of the vectors v1[from1, to1) and
+  // v2[from2, to2)
+  //
+  // If one vector is GALLOP_RATIO times longer than the other, the merge
+  // gallops: a pointer that would step over time points more than
+  // window/2 before the current point of the other vector jumps past all
+  // of them with an exponential and a binary search. The steps that are
+  // skipped could not have found a common element, so the result is the
+  // same as with the step by step merge.
+  static double vectorSimilarity(long[] v1, int from1, int to1,
+      long[] v2, int from2, int to2, double window, double bar) {
+    int len1 = to1 - from1;
+    int len2 = to2 - from2;
+    assert len1 > 0 && len2 > 0: "Error: empty vector";
+    int minLen = Math.min(len1, len2);
+    int needed = minCommons(bar, minLen);
+    boolean gallop = Math.max(len1, len2) / GALLOP_RATIO >= minLen;
+
+    // time range prefilter
+    long half = (long) Math.floor(window / 2.0);
+    int inRange1 = countInRange(v1, from1, to1, v2[from2] - half, v2[to2 - 1] + half);
+    int inRange2 = countInRange(v2, from2, to2, v1[from1] - half, v1[to1 - 1] + half);
+    if(Math.min(inRange1, inRange2) < needed)
+      return PRUNED_BY_RANGE;
+
+    int commons = 0;
+    int i = from1;
+    int j = from2;
+    while(i < to1 && j < to2) {
+      if(commons + Math.min(to1 - i, to2 - j) < needed)
+        return PRUNED_BY_BOUND;
+      long item1 = v1[i];
+      long item2 = v2[j];
+      if(Math.abs(item1 - item2) <= window/2.0) {  // item1 and item2 are in the same window
+        commons += 1;
+        i += 1;
+        j += 1;
+      }
+      else if (item1 < item2){
+        i = gallop ? skipBefore(v1, i + 1, to1, item2, window/2.0) : i + 1;
+      }
+      else j = gallop ? skipBefore(v2, j + 1, to2, item1, window/2.0) : j + 1;
+    }
+    if(commons < needed)
+      return PRUNED_BY_BOUND;
+
+    double similarity = (double) commons / Math.min((double) len1,  (double) len2);
+    return similarity;
+  }
+
+  // The first index k in [from, to) of the sorted vector v with
+  // t - v[k] <= half, or to if there is none, found by galloping
+  static int skipBefore(long[] v, int from, int to, long t, double half) {
+    int lo = from;
+    int hi = from;
+    int step = 1;
+    while(hi < to && t - v[hi] > half) {
+      lo = hi + 1;
+      hi = from + step;
+      step <<= 1;
+    }
+    hi = Math.min(hi, to);
+    while(lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if(t - v[mid] > half)
+        lo = mid + 1;
+      else hi = mid;
+    }
+    return lo;
+  }
+
+  // Batch vector similarity
+  //
+  // Compares one query vector with the vectors cands[from, to) of a
+  // packed block, in which vector c is points[offsets[c], offsets[c+1])
+  // (see pack). Every candidate whose similarity reaches bar is written
+  // with its similarity to outCands and outSims from index outStart on,
+  // in the order of cands, and the number of them is returned. The
+  // similarities are the values of vectorSimilarity(query, v, window,
+  // bar). pruned[0] and pruned[1] count the candidates that were pruned
+  // by range and by bound.
+  public static int batchSimilarity(long[] query, long[] points, int[] offsets,
+      int[] cands, int from, int to, double window, double bar,
+      int[] outCands, double[] outSims, int outStart, long[] pruned) {
+    int n = outStart;
+    for(int k = from; k < to; k++) {
+      int c = cands[k];
+      double similarity = vectorSimilarity(query, 0, query.length, points,
+          offsets[c], offsets[c + 1], window, bar);
+      if(similarity == PRUNED_BY_RANGE)
+        pruned[0]++;
+      else if(similarity == PRUNED_BY_BOUND)
+        pruned[1]++;
+      else {
+        outCands[n] = c;
+        outSims[n] = similarity;
+        n++;
+      }
+    }
+    return n - outStart;
+  }
+
+  // Pack the time vectors of users into one array. The vector of user u
+  // is written to [offsets[u], offsets[u+1]) of the result; offsets must
+  // have room for users.size() + 1 entries.
+  public static long[] pack(List<UserActionProfile> users, int[] offsets) {
+    int numUsers = users.size();
+    offsets[0] = 0;
+    for(int u = 0; u < numUsers; u++)
+      offsets[u + 1] = offsets[u] + users.get(u).getTimeVector().length;
+    long[] points = new long[offsets[numUsers]];
+    for(int u = 0; u < numUsers; u++) {
+      long[] v = users.get(u).getTimeVector();
+      System.arraycopy(v, 0, points, offsets[u], v.length);
+    }
+    return points;
+  }
+
+  // The smallest number of common elements c for which
+  // c / minLen >= bar, computed with the same floating point division
+  // as the similarity itself. Returns minLen + 1 if bar is unreachable.
+  static int minCommons(double bar, int minLen) {
+    if(bar <= 0.0)
+      return 0;
+    if(bar > 1.0)
+      return minLen + 1;
+    int c = (int) Math.ceil(bar * minLen);
+    while(c > 0 && (double) (c - 1) / (double) minLen >= bar)
+      c--;
+    while(c <= minLen && (double) c / (double) minLen < bar)
+      c++;
+    return c;
+  }
+
+  // Merge two sorted vectors into a new sorted vector, keeping the
+  // duplicates
+  public static long[] mergeVectors(long[] a, long[] b) {
+    long[] res = new long[a.length + b.length];
+    int i = 0, j = 0, k = 0;
+    while(i < a.length && j < b.length)
+      res[k++] = a[i] <= b[j] ? a[i++] : b[j++];
+    while(i < a.length)
+      res[k++] = a[i++];
+    while(j < b.length)
+      res[k++] = b[j++];
+    return res;
+  }
+
+  // Count the elements of the sorted vector v[from, to) within [lo, hi]
+  static int countInRange(long[] v, int from, int to, long lo, long hi) {
+    return lowerBound(v, from, to, hi + 1) - lowerBound(v, from, to, lo);
+  }
+
+  // The index of the first element of the sorted vector v[from, to) that
+  // is not smaller than t, or to if there is none
+  static int lowerBound(long[] v, int from, int to, long t) {
+    int lo = from;
+    int hi = to;
+    while(lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if(v[mid] < t)
+        lo = mid + 1;
+      else hi = mid;
+    }
+    return lo;
+  }
 }